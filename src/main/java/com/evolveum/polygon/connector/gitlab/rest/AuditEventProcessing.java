@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.identityconnectors.common.logging.Log;
+import org.json.JSONObject;
+
+/**
+ * Reads member changes of groups and projects from the instance audit events
+ * (GitLab Premium). Adding, removing or changing a member does not change the
+ * group or project itself, so the sync of groups and projects asks the audit
+ * events which of them have to be read again.
+ */
+public class AuditEventProcessing extends ObjectProcessing {
+
+	private static final Log LOGGER = Log.getLog(AuditEventProcessing.class);
+
+	private static final String AUDIT_EVENTS = "/audit_events";
+	private static final String ENTITY_TYPE = "entity_type";
+	private static final String ENTITY_ID = "entity_id";
+	private static final String CREATED_AFTER = "created_after";
+	private static final String DETAILS = "details";
+	private static final String TARGET_TYPE = "target_type";
+
+	static final String ENTITY_TYPE_GROUP = "Group";
+	static final String ENTITY_TYPE_PROJECT = "Project";
+
+	public AuditEventProcessing(GitlabRestConfiguration configuration, CloseableHttpClient httpclient) {
+		super(configuration, httpclient);
+	}
+
+	public AuditEventProcessing(ObjectProcessing operation) {
+		super(operation);
+	}
+
+	/**
+	 * @param entityType
+	 *            Group or Project
+	 * @param createdAfter
+	 *            time in ISO 8601 format
+	 * @return ids of groups or projects with member changes after the time, in
+	 *         order of the events
+	 */
+	public Set<Integer> getEntitiesWithMemberChanges(String entityType, String createdAfter) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put(ENTITY_TYPE, entityType);
+		parameters.put(CREATED_AFTER, createdAfter);
+		parameters.put(PER_PAGE, "100");
+
+		final Set<Integer> entityIds = new LinkedHashSet<Integer>();
+		executeGetRequest(AUDIT_EVENTS, parameters, null, event -> {
+			if (isMemberEvent(event) && event.has(ENTITY_ID) && !event.isNull(ENTITY_ID)) {
+				entityIds.add(event.getInt(ENTITY_ID));
+			}
+			return true;
+		});
+		LOGGER.info("{0} with member changes after {1}: {2}", entityType, createdAfter, entityIds);
+		return entityIds;
+	}
+
+	/**
+	 * Member events have a user as target and add or remove user_access or
+	 * change the access level or expiration of the membership.
+	 */
+	private boolean isMemberEvent(JSONObject event) {
+		JSONObject details = event.optJSONObject(DETAILS);
+		if (details == null || !"User".equals(details.optString(TARGET_TYPE))) {
+			return false;
+		}
+		return "user_access".equals(details.optString("add")) || "user_access".equals(details.optString("remove"))
+				|| details.has("change");
+	}
+}
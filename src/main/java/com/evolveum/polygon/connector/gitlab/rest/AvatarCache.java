@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Avatars keyed by their avatar_url, GitLab changes the url when the image
+ * changes so a cached avatar never becomes stale. Least recently used avatars
+ * are kept in memory up to the configured number of bytes, avatars evicted
+ * from memory spill to the optional disk directory which is capped by bytes
+ * as well. Files on disk are named by SHA-256 of the url, so they survive
+ * restarts of the connector.
+ * <p>
+ * Disk failures are only logged, a failing cache means another download.
+ */
+public class AvatarCache {
+
+	private static final Log LOGGER = Log.getLog(AvatarCache.class);
+
+	private static final String FILE_SUFFIX = ".avatar";
+
+	private final long maxMemoryBytes;
+	private final File directory;
+	private final long maxDiskBytes;
+
+	// access ordered, the first entry is the least recently used
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long memoryBytes;
+	private long diskBytes;
+
+	public AvatarCache(long maxMemoryBytes, String directory, long maxDiskBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.maxDiskBytes = maxDiskBytes;
+		if (directory == null || directory.isEmpty() || maxDiskBytes <= 0) {
+			this.directory = null;
+		} else {
+			this.directory = new File(directory);
+			loadDiskIndex();
+		}
+		LOGGER.info("Avatar cache created, memory: {0} bytes, directory: {1}, disk: {2} bytes", maxMemoryBytes,
+				this.directory, maxDiskBytes);
+	}
+
+	/**
+	 * @return cached avatar or null
+	 */
+	public byte[] get(String url) {
+		String key = key(url);
+		synchronized (this) {
+			byte[] avatar = memory.get(key);
+			if (avatar != null || disk.get(key) == null) {
+				return avatar;
+			}
+		}
+		byte[] avatar = readFile(key);
+		if (avatar != null) {
+			putInMemory(key, avatar);
+		}
+		return avatar;
+	}
+
+	public void put(String url, byte[] avatar) {
+		if (avatar == null) {
+			return;
+		}
+		putInMemory(key(url), avatar);
+	}
+
+	private void putInMemory(String key, byte[] avatar) {
+		Map<String, byte[]> evicted = new LinkedHashMap<String, byte[]>();
+		synchronized (this) {
+			byte[] previous = memory.put(key, avatar);
+			if (previous != null) {
+				memoryBytes -= previous.length;
+			}
+			memoryBytes += avatar.length;
+			Iterator<Map.Entry<String, byte[]>> iterator = memory.entrySet().iterator();
+			while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+				Map.Entry<String, byte[]> eldest = iterator.next();
+				iterator.remove();
+				memoryBytes -= eldest.getValue().length;
+				if (directory != null && !disk.containsKey(eldest.getKey())) {
+					evicted.put(eldest.getKey(), eldest.getValue());
+				}
+			}
+		}
+		for (Map.Entry<String, byte[]> entry : evicted.entrySet()) {
+			spill(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void spill(String key, byte[] avatar) {
+		if (avatar.length > maxDiskBytes) {
+			return;
+		}
+		try {
+			Files.createDirectories(directory.toPath());
+			Path tmp = Files.createTempFile(directory.toPath(), key, ".tmp");
+			Files.write(tmp, avatar);
+			Files.move(tmp, file(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn(e, "Avatar could not be written to the cache directory {0}", directory);
+			return;
+		}
+		synchronized (this) {
+			Long previous = disk.put(key, (long) avatar.length);
+			if (previous != null) {
+				diskBytes -= previous;
+			}
+			diskBytes += avatar.length;
+			Iterator<Map.Entry<String, Long>> iterator = disk.entrySet().iterator();
+			while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+				Map.Entry<String, Long> eldest = iterator.next();
+				iterator.remove();
+				diskBytes -= eldest.getValue();
+				if (!file(eldest.getKey()).delete()) {
+					LOGGER.ok("Evicted avatar file {0} not deleted", eldest.getKey());
+				}
+			}
+		}
+	}
+
+	private byte[] readFile(String key) {
+		try {
+			return Files.readAllBytes(file(key).toPath());
+		} catch (IOException e) {
+			LOGGER.warn(e, "Avatar could not be read from the cache directory {0}", directory);
+			synchronized (this) {
+				Long size = disk.remove(key);
+				if (size != null) {
+					diskBytes -= size;
+				}
+			}
+			return null;
+		}
+	}
+
+	private void loadDiskIndex() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		// oldest files first, they are the first to be evicted
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isFile() && name.endsWith(FILE_SUFFIX)) {
+				disk.put(name.substring(0, name.length() - FILE_SUFFIX.length()), file.length());
+				diskBytes += file.length();
+			}
+		}
+		LOGGER.info("Avatar cache directory {0} contains {1} avatars, {2} bytes", directory, disk.size(), diskBytes);
+	}
+
+	private File file(String key) {
+		return new File(directory, key + FILE_SUFFIX);
+	}
+
+	private static String key(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest(url.getBytes(StandardCharsets.UTF_8))) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new ConnectorException("SHA-256 is not available", e);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * Circuit breaker of one host, shared by all requests of a configuration
+ * through {@link GitlabHttpTransport}. It counts the outcomes of the last
+ * requests: a request fails by an I/O error or a 5xx response, or is too
+ * slow. When the share of failed requests reaches circuitBreakerFailureRate
+ * the breaker opens and requests fail at once with ConnectorIOException,
+ * without waiting for timeouts of a host which is down. After
+ * circuitBreakerOpenDuration one probe request is let through (half open),
+ * its success closes the breaker, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+	private static final Log LOGGER = Log.getLog(CircuitBreaker.class);
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	// outcomes of the last requests counted
+	private static final int WINDOW = 20;
+	// requests counted before the breaker may open
+	private static final int MIN_CALLS = 10;
+
+	private final String host;
+	// percent, 0 never opens
+	private final int failureRate;
+	private final long slowCallDuration;
+	private final long openDuration;
+
+	private final boolean[] failed = new boolean[WINDOW];
+	private int calls;
+	private int failures;
+	private int position;
+	private State state = State.CLOSED;
+	private long openedAt;
+	private long probeStartedAt;
+
+	public CircuitBreaker(String host, GitlabRestConfiguration configuration) {
+		this.host = host;
+		this.failureRate = configuration.getCircuitBreakerFailureRate();
+		this.slowCallDuration = configuration.getCircuitBreakerSlowCallDuration();
+		this.openDuration = TimeUnit.SECONDS.toMillis(configuration.getCircuitBreakerOpenDuration());
+	}
+
+	/**
+	 * @throws ConnectorIOException
+	 *             if the breaker is open, or half open with the probe request
+	 *             in flight
+	 */
+	public synchronized void acquirePermission() {
+		long now = System.currentTimeMillis();
+		if (state == State.OPEN) {
+			if (now - openedAt < openDuration) {
+				throw open(openedAt + openDuration - now);
+			}
+			state = State.HALF_OPEN;
+			probeStartedAt = now;
+			LOGGER.info("Circuit breaker of {0} half open, probe request let through", host);
+		} else if (state == State.HALF_OPEN) {
+			// a probe without outcome (its thread failed) is replaced after a while
+			if (now - probeStartedAt < openDuration) {
+				throw open(probeStartedAt + openDuration - now);
+			}
+			probeStartedAt = now;
+		}
+	}
+
+	/**
+	 * @param failure
+	 *            true for an I/O error or a 5xx response
+	 * @param duration
+	 *            milliseconds until the response
+	 */
+	public synchronized void record(boolean failure, long duration) {
+		boolean bad = failure || duration >= slowCallDuration;
+		if (state == State.HALF_OPEN) {
+			if (bad) {
+				trip();
+			} else {
+				close();
+			}
+			return;
+		}
+		if (state == State.OPEN) {
+			// late response of a request sent before the breaker opened
+			return;
+		}
+		if (calls == WINDOW) {
+			if (failed[position]) {
+				failures--;
+			}
+		} else {
+			calls++;
+		}
+		failed[position] = bad;
+		if (bad) {
+			failures++;
+		}
+		position = (position + 1) % WINDOW;
+		if (failureRate > 0 && calls >= MIN_CALLS && failures * 100 >= failureRate * calls) {
+			trip();
+		}
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	private void trip() {
+		state = State.OPEN;
+		openedAt = System.currentTimeMillis();
+		LOGGER.warn("Circuit breaker of {0} open for {1} ms, {2} of the last {3} requests failed", host, openDuration,
+				failures, calls);
+	}
+
+	private void close() {
+		state = State.CLOSED;
+		calls = 0;
+		failures = 0;
+		position = 0;
+		LOGGER.info("Circuit breaker of {0} closed", host);
+	}
+
+	private ConnectorIOException open(long remaining) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("GitLab host ").append(host).append(" is not available, requests fail for the next ")
+				.append(TimeUnit.MILLISECONDS.toSeconds(remaining) + 1).append(" s after ").append(failures)
+				.append(" of the last ").append(calls).append(" requests failed");
+		return new ConnectorIOException(sb.toString());
+	}
+}
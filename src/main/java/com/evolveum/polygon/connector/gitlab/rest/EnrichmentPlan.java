@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.identityconnectors.framework.common.objects.OperationOptions;
+
+/**
+ * Additional requests a search has to make for every object, derived from
+ * attributes to get. Attributes read by such requests are not returned by
+ * default, so a request is planned only when one of its attributes is
+ * explicitly asked for.
+ */
+public class EnrichmentPlan {
+
+	public enum Enrichment {
+		/** download of avatar_url */
+		AVATAR,
+		/** listing of /members */
+		MEMBERS,
+		/** listing of /users/:id/keys */
+		SSH_KEYS
+	}
+
+	private final Set<String> attributesToGet;
+	private final Set<Enrichment> enrichments = EnumSet.noneOf(Enrichment.class);
+
+	public EnrichmentPlan(OperationOptions options) {
+		if (options == null || options.getAttributesToGet() == null) {
+			attributesToGet = Collections.emptySet();
+		} else {
+			attributesToGet = new HashSet<String>(Arrays.asList(options.getAttributesToGet()));
+		}
+	}
+
+	/**
+	 * Plans the enrichment if any of the attributes it reads is requested.
+	 */
+	public EnrichmentPlan add(Enrichment enrichment, String... attrNames) {
+		for (String attrName : attrNames) {
+			if (attributesToGet.contains(attrName)) {
+				enrichments.add(enrichment);
+				break;
+			}
+		}
+		return this;
+	}
+
+	public boolean contains(Enrichment enrichment) {
+		return enrichments.contains(enrichment);
+	}
+
+	/**
+	 * @return true if objects need any additional request
+	 */
+	public boolean hasEnrichments() {
+		return !enrichments.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "EnrichmentPlan" + enrichments;
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * Connection pool and http client shared by every connector instance created
+ * for one configuration. The transport lives as long as the configuration and
+ * is closed in {@link GitlabRestConfiguration#release()}, so TCP/TLS
+ * connections survive between operations. It also owns the worker threads
+ * used for parallel requests and the rate limiter, retry policy and circuit
+ * breakers all requests share.
+ */
+public class GitlabHttpTransport implements Closeable {
+
+	private static final Log LOGGER = Log.getLog(GitlabHttpTransport.class);
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpclient;
+	private final ExecutorService executor;
+	private final RequestRateLimiter rateLimiter;
+	private final RetryPolicy retryPolicy;
+	private final GitlabRestConfiguration configuration;
+	private final RequestConfig pageRequestConfig;
+	private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	public GitlabHttpTransport(GitlabRestConfiguration configuration) {
+		this.configuration = configuration;
+
+		final long idleConnectionTimeout = TimeUnit.SECONDS.toMillis(configuration.getIdleConnectionTimeout());
+
+		connectionManager = new PoolingHttpClientConnectionManager(configuration.getConnectionTimeToLive(),
+				TimeUnit.SECONDS);
+		connectionManager.setMaxTotal(configuration.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(configuration.getConnectTimeout())
+				.setSocketTimeout(configuration.getSocketTimeout())
+				.setConnectionRequestTimeout(configuration.getConnectionRequestTimeout()).build();
+		pageRequestConfig = RequestConfig.copy(requestConfig).setContentCompressionEnabled(false).build();
+
+		// GitLab usually sends no Keep-Alive header, keep such connections only
+		// as long as the idle eviction would let them live anyway
+		ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+				if (duration < 0 || duration > idleConnectionTimeout) {
+					return idleConnectionTimeout;
+				}
+				return duration;
+			}
+		};
+
+		HttpClientBuilder builder = HttpClientBuilder.create().setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig).setKeepAliveStrategy(keepAliveStrategy)
+				// retries are decided by RetryPolicy
+				.disableAutomaticRetries()
+				.evictExpiredConnections()
+				.evictIdleConnections(configuration.getIdleConnectionTimeout(), TimeUnit.SECONDS)
+				// compression is set up below, not by the builder defaults
+				.disableContentCompression();
+		if ("true".equals(configuration.getCompressResponses())) {
+			// Accept-Encoding: gzip,deflate; the response entity decompresses
+			// as it is read, JSON is parsed straight from it
+			builder.addInterceptorLast(new RequestAcceptEncoding()).addInterceptorLast(new ResponseContentEncoding());
+		}
+		httpclient = builder.build();
+
+		final AtomicInteger threadNumber = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "gitlab-connector-worker-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		rateLimiter = new RequestRateLimiter(configuration.getRequestRateLimit());
+		retryPolicy = new RetryPolicy(configuration);
+
+		LOGGER.info("Http transport created, max connections: {0}, max connections per route: {1}",
+				configuration.getMaxConnections(), configuration.getMaxConnectionsPerRoute());
+	}
+
+	public CloseableHttpClient getHttpClient() {
+		return httpclient;
+	}
+
+	/**
+	 * Executor for parallel requests, the degree of parallelism is bounded by
+	 * the callers (see {@link OrderedTaskWindow}) and by the connection pool.
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Rate limiter every request waits for, see
+	 * {@link ObjectProcessing#execute(org.apache.http.client.methods.HttpUriRequest)}.
+	 */
+	public RequestRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Request config of listing pages, their compressed body is not decoded
+	 * by the client, see {@link SpooledEntity}.
+	 */
+	public RequestConfig getPageRequestConfig() {
+		return pageRequestConfig;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Circuit breaker of the host, avatars may be served by another host than
+	 * the API. Requests to a URI without host (relative or malformed loginURL)
+	 * share the breaker of loginURL.
+	 */
+	public CircuitBreaker getCircuitBreaker(String host) {
+		String key = host == null ? String.valueOf(configuration.getLoginURL()) : host;
+		return circuitBreakers.computeIfAbsent(key, name -> new CircuitBreaker(name, configuration));
+	}
+
+	@Override
+	public void close() {
+		LOGGER.info("Closing http transport");
+		executor.shutdownNow();
+		try {
+			// closes the connection manager and the idle connection evictor too
+			httpclient.close();
+		} catch (IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible close httpclient;").append(e.getLocalizedMessage());
+			throw new ConnectorIOException(sb.toString(), e);
+		}
+	}
+}
@@ -20,6 +20,8 @@ package com.evolveum.polygon.connector.gitlab.rest;
  *
  */
 
+import java.io.File;
+
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
@@ -37,7 +39,46 @@ public class GitlabRestConfiguration extends AbstractConfiguration implements St
     private String groupsToManage;
     private String objectAvatar = "false";
 	private String onlyHumanAccounts = "true";
+	private Integer maxConnections = 20;
+	private Integer maxConnectionsPerRoute = 20;
+	private Integer connectTimeout = 10000;
+	private Integer socketTimeout = 60000;
+	private Integer connectionRequestTimeout = 30000;
+	private Integer connectionTimeToLive = 300;
+	private Integer idleConnectionTimeout = 30;
+	private String usersPagination = PAGINATION_OFFSET;
+	private String groupsPagination = PAGINATION_OFFSET;
+	private String projectsPagination = PAGINATION_OFFSET;
+	private Integer pagePrefetchWindow = 4;
+	private Integer enrichmentParallelism = 4;
+	private Integer avatarCacheMemorySize = 16 * 1024 * 1024;
+	private String avatarCacheDirectory;
+	private Integer avatarCacheDiskSize = 256 * 1024 * 1024;
+	private String auditEventSync = "false";
+	private Integer systemHookPort = 0;
+	private GuardedString systemHookSecret;
+	private String systemHookJournalFile;
+	private String syncSnapshotDirectory;
+	private Integer requestRateLimit = 0;
+	private Integer maxRetries = 5;
+	private Integer retryBudget = 50;
+	private Integer retryInitialDelay = 500;
+	private Integer retryMaxDelay = 30000;
+	private Integer circuitBreakerFailureRate = 50;
+	private Integer circuitBreakerSlowCallDuration = 30000;
+	private Integer circuitBreakerOpenDuration = 30;
+	private String compressResponses = "true";
+	private Integer pageMemorySize = 1024 * 1024;
+	private GitlabHttpTransport transport;
+	private AvatarCache avatarCache;
+	private GroupIndex groupIndex;
+	private ManagedGroupScope managedGroupScope;
+	private SystemHookJournal hookJournal;
+	private SystemHookListener hookListener;
 	private static final Log LOGGER = Log.getLog(GitlabRestConnector.class);
+
+	static final String PAGINATION_OFFSET = "offset";
+	static final String PAGINATION_KEYSET = "keyset";
         
 
 
@@ -97,6 +138,372 @@ public class GitlabRestConfiguration extends AbstractConfiguration implements St
     public void setObjectAvatar(String objectAvatar) {
     	this.objectAvatar = objectAvatar;
     }
+
+    // Maximum number of pooled connections to the Gitlab endpoint
+    @ConfigurationProperty(order = 7, displayMessageKey = "maxConnections.display", helpMessageKey = "maxConnections.help", required = false, confidential = false)
+    public Integer getMaxConnections() {
+    	return maxConnections;
+    }
+
+    public void setMaxConnections(Integer maxConnections) {
+    	this.maxConnections = maxConnections;
+    }
+
+    @ConfigurationProperty(order = 8, displayMessageKey = "maxConnectionsPerRoute.display", helpMessageKey = "maxConnectionsPerRoute.help", required = false, confidential = false)
+    public Integer getMaxConnectionsPerRoute() {
+    	return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+    	this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    // Timeouts in milliseconds, 0 means no timeout
+    @ConfigurationProperty(order = 9, displayMessageKey = "connectTimeout.display", helpMessageKey = "connectTimeout.help", required = false, confidential = false)
+    public Integer getConnectTimeout() {
+    	return connectTimeout;
+    }
+
+    public void setConnectTimeout(Integer connectTimeout) {
+    	this.connectTimeout = connectTimeout;
+    }
+
+    @ConfigurationProperty(order = 10, displayMessageKey = "socketTimeout.display", helpMessageKey = "socketTimeout.help", required = false, confidential = false)
+    public Integer getSocketTimeout() {
+    	return socketTimeout;
+    }
+
+    public void setSocketTimeout(Integer socketTimeout) {
+    	this.socketTimeout = socketTimeout;
+    }
+
+    @ConfigurationProperty(order = 11, displayMessageKey = "connectionRequestTimeout.display", helpMessageKey = "connectionRequestTimeout.help", required = false, confidential = false)
+    public Integer getConnectionRequestTimeout() {
+    	return connectionRequestTimeout;
+    }
+
+    public void setConnectionRequestTimeout(Integer connectionRequestTimeout) {
+    	this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    // Lifetime of pooled connection in seconds
+    @ConfigurationProperty(order = 12, displayMessageKey = "connectionTimeToLive.display", helpMessageKey = "connectionTimeToLive.help", required = false, confidential = false)
+    public Integer getConnectionTimeToLive() {
+    	return connectionTimeToLive;
+    }
+
+    public void setConnectionTimeToLive(Integer connectionTimeToLive) {
+    	this.connectionTimeToLive = connectionTimeToLive;
+    }
+
+    // Idle pooled connections are closed after this number of seconds
+    @ConfigurationProperty(order = 13, displayMessageKey = "idleConnectionTimeout.display", helpMessageKey = "idleConnectionTimeout.help", required = false, confidential = false)
+    public Integer getIdleConnectionTimeout() {
+    	return idleConnectionTimeout;
+    }
+
+    public void setIdleConnectionTimeout(Integer idleConnectionTimeout) {
+    	this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    // Pagination used for full listing of users, groups and projects: offset (page/per_page) or keyset
+    @ConfigurationProperty(order = 14, displayMessageKey = "usersPagination.display", helpMessageKey = "usersPagination.help", required = false, confidential = false)
+    public String getUsersPagination() {
+    	return usersPagination;
+    }
+
+    public void setUsersPagination(String usersPagination) {
+    	this.usersPagination = usersPagination;
+    }
+
+    @ConfigurationProperty(order = 15, displayMessageKey = "groupsPagination.display", helpMessageKey = "groupsPagination.help", required = false, confidential = false)
+    public String getGroupsPagination() {
+    	return groupsPagination;
+    }
+
+    public void setGroupsPagination(String groupsPagination) {
+    	this.groupsPagination = groupsPagination;
+    }
+
+    @ConfigurationProperty(order = 16, displayMessageKey = "projectsPagination.display", helpMessageKey = "projectsPagination.help", required = false, confidential = false)
+    public String getProjectsPagination() {
+    	return projectsPagination;
+    }
+
+    public void setProjectsPagination(String projectsPagination) {
+    	this.projectsPagination = projectsPagination;
+    }
+
+    // Number of pages of offset paginated listing fetched concurrently, 1 means serial paging
+    @ConfigurationProperty(order = 17, displayMessageKey = "pagePrefetchWindow.display", helpMessageKey = "pagePrefetchWindow.help", required = false, confidential = false)
+    public Integer getPagePrefetchWindow() {
+    	return pagePrefetchWindow;
+    }
+
+    public void setPagePrefetchWindow(Integer pagePrefetchWindow) {
+    	this.pagePrefetchWindow = pagePrefetchWindow;
+    }
+
+    // Number of objects of a search enriched concurrently by additional requests (e.g. SSH keys), 1 means serial
+    @ConfigurationProperty(order = 18, displayMessageKey = "enrichmentParallelism.display", helpMessageKey = "enrichmentParallelism.help", required = false, confidential = false)
+    public Integer getEnrichmentParallelism() {
+    	return enrichmentParallelism;
+    }
+
+    public void setEnrichmentParallelism(Integer enrichmentParallelism) {
+    	this.enrichmentParallelism = enrichmentParallelism;
+    }
+
+    // Avatars kept in memory, in bytes, 0 keeps them only in avatarCacheDirectory (downloaded on every search without it)
+    @ConfigurationProperty(order = 19, displayMessageKey = "avatarCacheMemorySize.display", helpMessageKey = "avatarCacheMemorySize.help", required = false, confidential = false)
+    public Integer getAvatarCacheMemorySize() {
+    	return avatarCacheMemorySize;
+    }
+
+    public void setAvatarCacheMemorySize(Integer avatarCacheMemorySize) {
+    	this.avatarCacheMemorySize = avatarCacheMemorySize;
+    }
+
+    // Directory for avatars evicted from memory, no disk tier when empty
+    @ConfigurationProperty(order = 20, displayMessageKey = "avatarCacheDirectory.display", helpMessageKey = "avatarCacheDirectory.help", required = false, confidential = false)
+    public String getAvatarCacheDirectory() {
+    	return avatarCacheDirectory;
+    }
+
+    public void setAvatarCacheDirectory(String avatarCacheDirectory) {
+    	this.avatarCacheDirectory = avatarCacheDirectory;
+    }
+
+    @ConfigurationProperty(order = 21, displayMessageKey = "avatarCacheDiskSize.display", helpMessageKey = "avatarCacheDiskSize.help", required = false, confidential = false)
+    public Integer getAvatarCacheDiskSize() {
+    	return avatarCacheDiskSize;
+    }
+
+    public void setAvatarCacheDiskSize(Integer avatarCacheDiskSize) {
+    	this.avatarCacheDiskSize = avatarCacheDiskSize;
+    }
+
+    // Member changes of groups and projects read from audit events during sync (GitLab Premium)
+    @ConfigurationProperty(order = 22, displayMessageKey = "auditEventSync.display", helpMessageKey = "auditEventSync.help", required = false, confidential = false)
+    public String getAuditEventSync() {
+    	return auditEventSync;
+    }
+
+    public void setAuditEventSync(String auditEventSync) {
+    	this.auditEventSync = auditEventSync;
+    }
+
+    // Port of the embedded system hook listener, 0 disables it
+    @ConfigurationProperty(order = 23, displayMessageKey = "systemHookPort.display", helpMessageKey = "systemHookPort.help", required = false, confidential = false)
+    public Integer getSystemHookPort() {
+    	return systemHookPort;
+    }
+
+    public void setSystemHookPort(Integer systemHookPort) {
+    	this.systemHookPort = systemHookPort;
+    }
+
+    @ConfigurationProperty(order = 24, displayMessageKey = "systemHookSecret.display", helpMessageKey = "systemHookSecret.help", required = false, confidential = true)
+    public GuardedString getSystemHookSecret() {
+    	return systemHookSecret;
+    }
+
+    public void setSystemHookSecret(GuardedString systemHookSecret) {
+    	this.systemHookSecret = systemHookSecret;
+    }
+
+    @ConfigurationProperty(order = 25, displayMessageKey = "systemHookJournalFile.display", helpMessageKey = "systemHookJournalFile.help", required = false, confidential = false)
+    public String getSystemHookJournalFile() {
+    	return systemHookJournalFile;
+    }
+
+    public void setSystemHookJournalFile(String systemHookJournalFile) {
+    	this.systemHookJournalFile = systemHookJournalFile;
+    }
+
+    // Directory of the sync snapshots, users and projects are synchronized by snapshot diff when set
+    @ConfigurationProperty(order = 26, displayMessageKey = "syncSnapshotDirectory.display", helpMessageKey = "syncSnapshotDirectory.help", required = false, confidential = false)
+    public String getSyncSnapshotDirectory() {
+    	return syncSnapshotDirectory;
+    }
+
+    public void setSyncSnapshotDirectory(String syncSnapshotDirectory) {
+    	this.syncSnapshotDirectory = syncSnapshotDirectory;
+    }
+
+    // Requests per minute sent at most, 0 paces the requests by the rate limit headers of GitLab only
+    @ConfigurationProperty(order = 27, displayMessageKey = "requestRateLimit.display", helpMessageKey = "requestRateLimit.help", required = false, confidential = false)
+    public Integer getRequestRateLimit() {
+    	return requestRateLimit;
+    }
+
+    public void setRequestRateLimit(Integer requestRateLimit) {
+    	this.requestRateLimit = requestRateLimit;
+    }
+
+    // A request failed by a transient error is sent again at most this number of times
+    @ConfigurationProperty(order = 28, displayMessageKey = "maxRetries.display", helpMessageKey = "maxRetries.help", required = false, confidential = false)
+    public Integer getMaxRetries() {
+    	return maxRetries;
+    }
+
+    public void setMaxRetries(Integer maxRetries) {
+    	this.maxRetries = maxRetries;
+    }
+
+    // Retries of all requests of one connector operation together
+    @ConfigurationProperty(order = 29, displayMessageKey = "retryBudget.display", helpMessageKey = "retryBudget.help", required = false, confidential = false)
+    public Integer getRetryBudget() {
+    	return retryBudget;
+    }
+
+    public void setRetryBudget(Integer retryBudget) {
+    	this.retryBudget = retryBudget;
+    }
+
+    @ConfigurationProperty(order = 30, displayMessageKey = "retryInitialDelay.display", helpMessageKey = "retryInitialDelay.help", required = false, confidential = false)
+    public Integer getRetryInitialDelay() {
+    	return retryInitialDelay;
+    }
+
+    public void setRetryInitialDelay(Integer retryInitialDelay) {
+    	this.retryInitialDelay = retryInitialDelay;
+    }
+
+    @ConfigurationProperty(order = 31, displayMessageKey = "retryMaxDelay.display", helpMessageKey = "retryMaxDelay.help", required = false, confidential = false)
+    public Integer getRetryMaxDelay() {
+    	return retryMaxDelay;
+    }
+
+    public void setRetryMaxDelay(Integer retryMaxDelay) {
+    	this.retryMaxDelay = retryMaxDelay;
+    }
+
+    // Percent of failed or slow requests among the last requests which opens the circuit breaker, 0 disables it
+    @ConfigurationProperty(order = 32, displayMessageKey = "circuitBreakerFailureRate.display", helpMessageKey = "circuitBreakerFailureRate.help", required = false, confidential = false)
+    public Integer getCircuitBreakerFailureRate() {
+    	return circuitBreakerFailureRate;
+    }
+
+    public void setCircuitBreakerFailureRate(Integer circuitBreakerFailureRate) {
+    	this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+    }
+
+    // Requests taking longer than this number of milliseconds count as failed for the circuit breaker
+    @ConfigurationProperty(order = 33, displayMessageKey = "circuitBreakerSlowCallDuration.display", helpMessageKey = "circuitBreakerSlowCallDuration.help", required = false, confidential = false)
+    public Integer getCircuitBreakerSlowCallDuration() {
+    	return circuitBreakerSlowCallDuration;
+    }
+
+    public void setCircuitBreakerSlowCallDuration(Integer circuitBreakerSlowCallDuration) {
+    	this.circuitBreakerSlowCallDuration = circuitBreakerSlowCallDuration;
+    }
+
+    // Seconds the open circuit breaker fails requests before it lets a probe request through
+    @ConfigurationProperty(order = 34, displayMessageKey = "circuitBreakerOpenDuration.display", helpMessageKey = "circuitBreakerOpenDuration.help", required = false, confidential = false)
+    public Integer getCircuitBreakerOpenDuration() {
+    	return circuitBreakerOpenDuration;
+    }
+
+    public void setCircuitBreakerOpenDuration(Integer circuitBreakerOpenDuration) {
+    	this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+    }
+
+    // Responses requested gzip or deflate compressed (Accept-Encoding) and decompressed while parsed
+    @ConfigurationProperty(order = 35, displayMessageKey = "compressResponses.display", helpMessageKey = "compressResponses.help", required = false, confidential = false)
+    public String getCompressResponses() {
+    	return compressResponses;
+    }
+
+    public void setCompressResponses(String compressResponses) {
+    	this.compressResponses = compressResponses;
+    }
+
+    // Bytes of a received listing page held in memory, a larger page is spooled to a temporary file
+    @ConfigurationProperty(order = 36, displayMessageKey = "pageMemorySize.display", helpMessageKey = "pageMemorySize.help", required = false, confidential = false)
+    public Integer getPageMemorySize() {
+    	return pageMemorySize;
+    }
+
+    public void setPageMemorySize(Integer pageMemorySize) {
+    	this.pageMemorySize = pageMemorySize;
+    }
+
+    boolean isSnapshotSyncEnabled() {
+    	return !StringUtil.isBlank(syncSnapshotDirectory);
+    }
+
+    boolean isSystemHookEnabled() {
+    	return systemHookPort != null && systemHookPort > 0;
+    }
+
+    /**
+     * System hook journal shared by all connector instances of this
+     * configuration, opened on first use.
+     */
+    synchronized SystemHookJournal getHookJournal() {
+    	if (hookJournal == null) {
+    		hookJournal = new SystemHookJournal(new File(systemHookJournalFile));
+    	}
+    	return hookJournal;
+    }
+
+    /**
+     * Starts the system hook listener unless it is already running, called
+     * from init() of every connector instance.
+     */
+    synchronized void startSystemHookListener() {
+    	if (hookListener != null || !isSystemHookEnabled()) {
+    		return;
+    	}
+    	final StringBuilder secret = new StringBuilder();
+    	systemHookSecret.access(chars -> secret.append(chars));
+    	hookListener = new SystemHookListener(systemHookPort, secret.toString(), getHookJournal());
+    }
+
+    /**
+     * Avatar cache shared by all connector instances of this configuration,
+     * created on first use.
+     */
+    synchronized AvatarCache getAvatarCache() {
+    	if (avatarCache == null) {
+    		avatarCache = new AvatarCache(avatarCacheMemorySize, avatarCacheDirectory, avatarCacheDiskSize);
+    	}
+    	return avatarCache;
+    }
+
+    /**
+     * Group index shared by all connector instances of this configuration,
+     * created on first use.
+     */
+    synchronized GroupIndex getGroupIndex() {
+    	if (groupIndex == null) {
+    		groupIndex = new GroupIndex();
+    	}
+    	return groupIndex;
+    }
+
+    /**
+     * groupsToManage resolved to group ids, shared by all connector instances
+     * of this configuration, created on first use.
+     */
+    synchronized ManagedGroupScope getManagedGroupScope() {
+    	if (managedGroupScope == null) {
+    		managedGroupScope = new ManagedGroupScope(groupsToManage);
+    	}
+    	return managedGroupScope;
+    }
+
+    /**
+     * Http transport shared by all connector instances of this configuration,
+     * created on first use.
+     */
+    synchronized GitlabHttpTransport getTransport() {
+    	if (transport == null) {
+    		transport = new GitlabHttpTransport(this);
+    	}
+    	return transport;
+    }
     
         
 	    
@@ -117,13 +524,103 @@ public class GitlabRestConfiguration extends AbstractConfiguration implements St
 		if (objectAvatar==null || !(objectAvatar.equals("true") || objectAvatar.equals("false") || objectAvatar.isEmpty())) {
 			throw new ConfigurationException("objectAvatar should be true or false.");
 		}
+		validatePositive("maxConnections", maxConnections);
+		validatePositive("maxConnectionsPerRoute", maxConnectionsPerRoute);
+		validateNotNegative("connectTimeout", connectTimeout);
+		validateNotNegative("socketTimeout", socketTimeout);
+		validateNotNegative("connectionRequestTimeout", connectionRequestTimeout);
+		validatePositive("connectionTimeToLive", connectionTimeToLive);
+		validatePositive("idleConnectionTimeout", idleConnectionTimeout);
+		validatePagination("usersPagination", usersPagination);
+		validatePagination("groupsPagination", groupsPagination);
+		validatePagination("projectsPagination", projectsPagination);
+		validatePositive("pagePrefetchWindow", pagePrefetchWindow);
+		validatePositive("enrichmentParallelism", enrichmentParallelism);
+		validateNotNegative("avatarCacheMemorySize", avatarCacheMemorySize);
+		validateNotNegative("avatarCacheDiskSize", avatarCacheDiskSize);
+		if (auditEventSync == null || !(auditEventSync.equals("true") || auditEventSync.equals("false"))) {
+			throw new ConfigurationException("auditEventSync should be true or false.");
+		}
+		if (systemHookPort == null || systemHookPort < 0 || systemHookPort > 65535) {
+			throw new ConfigurationException("systemHookPort should be a port number or 0.");
+		}
+		if (isSystemHookEnabled() && StringUtil.isBlank(systemHookJournalFile)) {
+			throw new ConfigurationException("systemHookJournalFile cannot be empty when systemHookPort is set.");
+		}
+		if (isSystemHookEnabled() && isBlank(systemHookSecret)) {
+			// without the token anyone reaching the port could post forged *_destroy events
+			throw new ConfigurationException("systemHookSecret cannot be empty when systemHookPort is set.");
+		}
+		validateNotNegative("requestRateLimit", requestRateLimit);
+		validateNotNegative("maxRetries", maxRetries);
+		validateNotNegative("retryBudget", retryBudget);
+		validatePositive("retryInitialDelay", retryInitialDelay);
+		validatePositive("retryMaxDelay", retryMaxDelay);
+		if (circuitBreakerFailureRate == null || circuitBreakerFailureRate < 0 || circuitBreakerFailureRate > 100) {
+			throw new ConfigurationException("circuitBreakerFailureRate should be a percentage between 0 and 100.");
+		}
+		validatePositive("circuitBreakerSlowCallDuration", circuitBreakerSlowCallDuration);
+		validatePositive("circuitBreakerOpenDuration", circuitBreakerOpenDuration);
+		if (compressResponses == null || !(compressResponses.equals("true") || compressResponses.equals("false"))) {
+			throw new ConfigurationException("compressResponses should be true or false.");
+		}
+		validateNotNegative("pageMemorySize", pageMemorySize);
 		
 		LOGGER.info("Configuration valid");
 	}
+
+	private void validatePositive(String name, Integer value) {
+		if (value == null || value <= 0) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(name).append(" should be positive number.");
+			throw new ConfigurationException(sb.toString());
+		}
+	}
+
+	private void validatePagination(String name, String value) {
+		if (value == null || !(value.equals(PAGINATION_OFFSET) || value.equals(PAGINATION_KEYSET))) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(name).append(" should be offset or keyset.");
+			throw new ConfigurationException(sb.toString());
+		}
+	}
+
+	private void validateNotNegative(String name, Integer value) {
+		if (value == null || value < 0) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(name).append(" should not be negative number.");
+			throw new ConfigurationException(sb.toString());
+		}
+	}
+
+	private static boolean isBlank(GuardedString value) {
+		if (value == null) {
+			return true;
+		}
+		final boolean[] blank = { true };
+		value.access(chars -> blank[0] = new String(chars).trim().isEmpty());
+		return blank[0];
+	}
 	
 	@Override
-	public void release() {
+	public synchronized void release() {
 		LOGGER.info("The release of configuration resources is being performed");
+		if (this.transport != null) {
+			this.transport.close();
+			this.transport = null;
+		}
+		// memory tier is dropped, avatars on disk are kept for the next run
+		this.avatarCache = null;
+		this.groupIndex = null;
+		this.managedGroupScope = null;
+		if (this.hookListener != null) {
+			this.hookListener.close();
+			this.hookListener = null;
+		}
+		if (this.hookJournal != null) {
+			this.hookJournal.close();
+			this.hookJournal = null;
+		}
 		this.loginUrl = null;                
 		this.privateToken.dispose();
                 this.protocol = null;
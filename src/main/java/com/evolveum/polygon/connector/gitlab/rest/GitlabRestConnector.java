@@ -20,16 +20,13 @@ package com.evolveum.polygon.connector.gitlab.rest;
  *
  */
 
-import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.identityconnectors.common.CollectionUtil;
 import org.identityconnectors.common.logging.Log;
-import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
@@ -40,6 +37,8 @@ import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Schema;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
@@ -49,13 +48,14 @@ import org.identityconnectors.framework.spi.ConnectorClass;
 import org.identityconnectors.framework.spi.operations.CreateOp;
 import org.identityconnectors.framework.spi.operations.SchemaOp;
 import org.identityconnectors.framework.spi.operations.SearchOp;
+import org.identityconnectors.framework.spi.operations.SyncOp;
 import org.identityconnectors.framework.spi.operations.TestOp;
 import org.identityconnectors.framework.spi.operations.UpdateDeltaOp;
 import org.identityconnectors.framework.spi.operations.DeleteOp;
 
 @ConnectorClass(displayNameKey = "connector.gitlab.rest.display", configurationClass = GitlabRestConfiguration.class)
 public class GitlabRestConnector
-		implements TestOp, SchemaOp, Connector, CreateOp, DeleteOp, UpdateDeltaOp, SearchOp<Filter> {
+		implements TestOp, SchemaOp, Connector, CreateOp, DeleteOp, UpdateDeltaOp, SearchOp<Filter>, SyncOp {
 
 	private static final Log LOGGER = Log.getLog(GitlabRestConnector.class);
 	private GitlabRestConfiguration configuration;
@@ -82,22 +82,17 @@ public class GitlabRestConnector
 
 		this.configuration = (GitlabRestConfiguration) configuration;
 		this.configuration.validate();
-		httpclient = HttpClientBuilder.create().build();
+		// pooled client owned by the configuration, see GitlabRestConfiguration.release()
+		httpclient = this.configuration.getTransport().getHttpClient();
+		// hooks are received for the whole lifetime of the configuration
+		this.configuration.startSystemHookListener();
 	}
 
 	@Override
 	public void dispose() {
 		LOGGER.info("Configuration cleanup");
 		configuration = null;
-		if (httpclient != null) {
-			try {
-				httpclient.close();
-			} catch (IOException e) {
-				StringBuilder sb = new StringBuilder();
-				sb.append("It was not possible close httpclient;").append(e.getLocalizedMessage());
-				throw new ConnectorIOException(sb.toString(), e);
-			}
-		}
+		httpclient = null;
 	}
 
 	@Override
@@ -167,6 +162,8 @@ public class GitlabRestConnector
 			objectProcessing.executeDeleteOperation(uid, USERS);
 		} else if (objectClass.is(ObjectClass.GROUP_NAME)) { // __GROUP__
 			objectProcessing.executeDeleteOperation(uid, GROUPS);
+			configuration.getGroupIndex().remove(Integer.parseInt(uid.getUidValue()));
+			configuration.getManagedGroupScope().invalidate();
 		} else if (objectClass.is(PROJECT_NAME)) {
 			objectProcessing.executeDeleteOperation(uid, PROJECTS);
 		} else {
@@ -344,4 +341,65 @@ public class GitlabRestConnector
 			throw new UnsupportedOperationException("The value of the ObjectClass parameter is unsupported.");
 		}
 	}
+
+	@Override
+	public void sync(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+
+		if (objectClass == null) {
+			LOGGER.error("Parameter of type ObjectClass not provided.");
+			throw new InvalidAttributeValueException("Parameter of type ObjectClass not provided.");
+		}
+
+		if (handler == null) {
+			LOGGER.error("Parameter of type SyncResultsHandler not provided.");
+			throw new InvalidAttributeValueException("Parameter of type SyncResultsHandler not provided.");
+		}
+
+		LOGGER.info("sync on {0}, token: {1}, options: {2}", objectClass, token, options);
+
+		if (configuration.isSystemHookEnabled() && (objectClass.is(ObjectClass.ACCOUNT_NAME)
+				|| objectClass.is(ObjectClass.GROUP_NAME) || objectClass.is(PROJECT_NAME))) {
+			SystemHookProcessing systemHookProcessing = new SystemHookProcessing(configuration, httpclient);
+			systemHookProcessing.sync(objectClass, token, handler, options);
+		} else if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+			UserProcessing userProcessing = new UserProcessing(configuration, httpclient);
+			userProcessing.syncUsers(token, handler, options);
+		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+			GroupProcessing groupProcessing = new GroupProcessing(configuration, httpclient);
+			groupProcessing.syncGroups(token, handler, options);
+		} else if (objectClass.is(PROJECT_NAME)) {
+			ProjectProcessing projectProcessing = new ProjectProcessing(configuration, httpclient);
+			projectProcessing.syncProjects(token, handler, options);
+		} else {
+			LOGGER.error("Sync of ObjectClass {0} is not supported.", objectClass);
+			throw new UnsupportedOperationException("Sync of ObjectClass " + objectClass + " is not supported.");
+		}
+	}
+
+	@Override
+	public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+
+		if (objectClass == null) {
+			LOGGER.error("Parameter of type ObjectClass not provided.");
+			throw new InvalidAttributeValueException("Parameter of type ObjectClass not provided.");
+		}
+
+		if (configuration.isSystemHookEnabled() && (objectClass.is(ObjectClass.ACCOUNT_NAME)
+				|| objectClass.is(ObjectClass.GROUP_NAME) || objectClass.is(PROJECT_NAME))) {
+			SystemHookProcessing systemHookProcessing = new SystemHookProcessing(configuration, httpclient);
+			return systemHookProcessing.getLatestSyncToken(objectClass);
+		} else if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+			UserProcessing userProcessing = new UserProcessing(configuration, httpclient);
+			return userProcessing.getLatestSyncTokenForUser();
+		} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+			GroupProcessing groupProcessing = new GroupProcessing(configuration, httpclient);
+			return groupProcessing.getLatestSyncTokenForGroup();
+		} else if (objectClass.is(PROJECT_NAME)) {
+			ProjectProcessing projectProcessing = new ProjectProcessing(configuration, httpclient);
+			return projectProcessing.getLatestSyncTokenForProject();
+		} else {
+			LOGGER.error("Sync of ObjectClass {0} is not supported.", objectClass);
+			throw new UnsupportedOperationException("Sync of ObjectClass " + objectClass + " is not supported.");
+		}
+	}
 }
@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+/**
+ * Namespace tree of the groups the connector has seen, shared by all
+ * connector instances of a configuration: id and full path, parent and
+ * children of every group. It is filled from every group read by the
+ * connector; a subtree listed completely by /groups/:id/descendant_groups is
+ * marked loaded, a path missing in a loaded subtree does not exist and needs
+ * no request. Full paths are case-insensitive in GitLab.
+ * <p>
+ * Entries expire, a group renamed or moved outside of the connector is read
+ * again at the latest after the expiration; groups changed by the connector
+ * are removed with their subtree right away, and subtrees which contained
+ * them or received a new group are no longer loaded. Groups created outside
+ * of the connector are missing in a loaded subtree until it expires, so the
+ * absence of a path is only good enough for searches.
+ */
+public class GroupIndex {
+
+	private static final long DEFAULT_EXPIRATION = TimeUnit.MINUTES.toMillis(5);
+
+	private static class Node {
+
+		private final int id;
+		private final Integer parentId;
+		private final String fullPath;
+		private final long expires;
+
+		Node(int id, Integer parentId, String fullPath, long expires) {
+			this.id = id;
+			this.parentId = parentId;
+			this.fullPath = fullPath;
+			this.expires = expires;
+		}
+	}
+
+	private final Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+	private final Map<String, Integer> idsByPath = new HashMap<String, Integer>();
+	private final Map<Integer, Set<Integer>> children = new HashMap<Integer, Set<Integer>>();
+	// roots of subtrees listed completely, with expiration
+	private final Map<Integer, Long> loadedSubtrees = new HashMap<Integer, Long>();
+	private final long expiration;
+
+	public GroupIndex() {
+		this(DEFAULT_EXPIRATION);
+	}
+
+	GroupIndex(long expiration) {
+		this.expiration = expiration;
+	}
+
+	/**
+	 * Records a group read from GitLab (id, parent_id and full_path).
+	 */
+	public synchronized void put(JSONObject group) {
+		if (!group.has("id") || !group.has("full_path")) {
+			return;
+		}
+		int id = group.getInt("id");
+		Integer parentId = group.isNull("parent_id") || !group.has("parent_id") ? null : group.getInt("parent_id");
+		Node previous = nodes.get(id);
+		if (previous != null) {
+			unlink(previous);
+		}
+		Node node = new Node(id, parentId, group.getString("full_path"), System.currentTimeMillis() + expiration);
+		nodes.put(id, node);
+		idsByPath.put(key(node.fullPath), id);
+		if (parentId != null) {
+			Set<Integer> siblings = children.get(parentId);
+			if (siblings == null) {
+				siblings = new LinkedHashSet<Integer>();
+				children.put(parentId, siblings);
+			}
+			siblings.add(id);
+		}
+	}
+
+	/**
+	 * @return id of the group or null if it is not known
+	 */
+	public synchronized Integer getId(String fullPath) {
+		Node node = fresh(idsByPath.get(key(fullPath)));
+		return node == null ? null : node.id;
+	}
+
+	/**
+	 * @return true if a loaded subtree contains the place of the full path, a
+	 *         group with the path not in the index does not exist then
+	 */
+	public synchronized boolean isCovered(String fullPath) {
+		String path = fullPath;
+		int slash;
+		while ((slash = path.lastIndexOf('/')) > 0) {
+			path = path.substring(0, slash);
+			Node ancestor = fresh(idsByPath.get(key(path)));
+			if (ancestor != null && isLoaded(ancestor.id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets the subtree before it is listed again, groups moved away from
+	 * it are not kept as its descendants.
+	 */
+	public synchronized void clearSubtree(int id) {
+		loadedSubtrees.remove(id);
+		Set<Integer> childIds = children.remove(id);
+		if (childIds != null) {
+			for (Integer childId : childIds) {
+				removeNode(childId);
+			}
+		}
+	}
+
+	/**
+	 * Marks the subtree loaded, all its descendants were put.
+	 */
+	public synchronized void setSubtreeLoaded(int id) {
+		loadedSubtrees.put(id, System.currentTimeMillis() + expiration);
+	}
+
+	/**
+	 * A group was created in or moved to the group, the subtrees of the group
+	 * and of its ancestors are no longer complete.
+	 */
+	public synchronized void childrenChanged(int id) {
+		Integer ancestorId = id;
+		while (ancestorId != null) {
+			loadedSubtrees.remove(ancestorId);
+			Node ancestor = nodes.get(ancestorId);
+			ancestorId = ancestor == null ? null : ancestor.parentId;
+		}
+	}
+
+	/**
+	 * Removes the group with its subtree, its path changed or it was deleted.
+	 * Subtrees which contained it are no longer loaded.
+	 */
+	public synchronized void remove(int id) {
+		Node node = nodes.get(id);
+		if (node != null && node.parentId != null) {
+			childrenChanged(node.parentId);
+		}
+		removeNode(id);
+	}
+
+	private void removeNode(int id) {
+		clearSubtree(id);
+		Node node = nodes.remove(id);
+		if (node != null) {
+			unlink(node);
+		}
+	}
+
+	private void unlink(Node node) {
+		idsByPath.remove(key(node.fullPath), node.id);
+		if (node.parentId != null) {
+			Set<Integer> siblings = children.get(node.parentId);
+			if (siblings != null) {
+				siblings.remove(node.id);
+			}
+		}
+	}
+
+	private boolean isLoaded(int id) {
+		Long expires = loadedSubtrees.get(id);
+		if (expires != null && expires < System.currentTimeMillis()) {
+			loadedSubtrees.remove(id);
+			return false;
+		}
+		return expires != null;
+	}
+
+	private Node fresh(Integer id) {
+		Node node = id == null ? null : nodes.get(id);
+		if (node != null && node.expires < System.currentTimeMillis()) {
+			// subtrees listed with the node are stale as well
+			remove(node.id);
+			return null;
+		}
+		return node;
+	}
+
+	private static String key(String fullPath) {
+		return fullPath.toLowerCase(Locale.ROOT);
+	}
+}
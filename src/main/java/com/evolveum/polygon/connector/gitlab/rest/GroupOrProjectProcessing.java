@@ -25,6 +25,7 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +35,7 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.AttributeDelta;
 import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
 import org.identityconnectors.framework.common.objects.OperationOptions;
@@ -42,6 +44,8 @@ import org.identityconnectors.framework.common.objects.Uid;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import com.evolveum.polygon.connector.gitlab.rest.EnrichmentPlan.Enrichment;
+
 public class GroupOrProjectProcessing extends ObjectProcessing {
 
 	protected static final String ATTR_PATH = "path";
@@ -65,10 +69,121 @@ public class GroupOrProjectProcessing extends ObjectProcessing {
 	protected static final String ATTR_MEMBERS_WITH_NAME = "members_with_name";
 	protected static final String ATTR_EXPIRES_AT = "expires_at";
 
+	// attributes read with the /members request
+	protected static final String[] MEMBER_ATTRIBUTES = { ATTR_MEMBERS_WITH_NAME, ATTR_GUEST_MEMBERS,
+			ATTR_REPORTER_MEMBERS, ATTR_DEVELOPER_MEMBERS, ATTR_MASTER_MEMBERS, ATTR_OWNER_MEMBERS };
+
+	// above this many candidates the memberships of a user are read instead of a check per candidate
+	private static final int MEMBER_CHECKS_PER_USER = 10;
+
 	public GroupOrProjectProcessing(GitlabRestConfiguration configuration, CloseableHttpClient httpclient) {
 		super(configuration, httpclient);
 	}
 
+	public GroupOrProjectProcessing(ObjectProcessing operation) {
+		super(operation);
+	}
+
+	/**
+	 * @return access level of a member attribute, null for other attributes
+	 */
+	protected static Integer getAccessLevel(String memberAttribute) {
+		switch (memberAttribute) {
+		case ATTR_GUEST_MEMBERS:
+			return 10;
+		case ATTR_REPORTER_MEMBERS:
+			return 20;
+		case ATTR_DEVELOPER_MEMBERS:
+			return 30;
+		case ATTR_MASTER_MEMBERS:
+			return 40;
+		case ATTR_OWNER_MEMBERS:
+			return 50;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Groups or projects where all the users are direct members with the
+	 * access level, for ContainsAllValuesFilter on a member attribute. The
+	 * memberships of the first user are the candidates, the other users are
+	 * checked by /members/:user_id of each remaining candidate, or by their
+	 * own memberships when there are many candidates. No member list is read,
+	 * each match is read and handed over as soon as it is confirmed.
+	 *
+	 * @param path
+	 *            GROUPS or PROJECTS
+	 * @param membershipType
+	 *            type of /users/:id/memberships
+	 * @return false if objectHandler wants no more objects
+	 */
+	protected boolean searchByMembers(String path, String membershipType, int accessLevel, List<Object> userIds,
+			Map<String, String> objectParameters, OperationOptions options, JSONObjectHandler objectHandler) {
+		UserProcessing userProcessing = new UserProcessing(this);
+		Set<Integer> candidates = getMemberships(userProcessing, userIds.get(0), membershipType, accessLevel);
+		List<String> checkedPerCandidate = new ArrayList<String>();
+		for (int i = 1; i < userIds.size() && !candidates.isEmpty(); i++) {
+			if (candidates.size() > MEMBER_CHECKS_PER_USER) {
+				candidates.retainAll(getMemberships(userProcessing, userIds.get(i), membershipType, accessLevel));
+			} else {
+				checkedPerCandidate.add(String.valueOf(userIds.get(i)));
+			}
+		}
+		LOGGER.info("searchByMembers {0} of access level {1}: {2} candidates", userIds, accessLevel, candidates.size());
+
+		for (Integer id : candidates) {
+			String objectPath = path + "/" + id;
+			if (!hasMembers(objectPath, checkedPerCandidate, accessLevel)) {
+				continue;
+			}
+			JSONObject object = (JSONObject) executeGetRequest(objectPath, objectParameters, options, false);
+			if (!objectHandler.handle(object)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Set<Integer> getMemberships(UserProcessing userProcessing, Object userId, String membershipType,
+			int accessLevel) {
+		Map<Integer, Integer> accessBySource = userProcessing
+				.getUserAccess(USERS + "/" + userId + "/" + USERS_MEMBERSHIPS_URL, membershipType);
+		Set<Integer> sources = new LinkedHashSet<Integer>();
+		for (Map.Entry<Integer, Integer> access : accessBySource.entrySet()) {
+			if (access.getValue() == accessLevel) {
+				sources.add(access.getKey());
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * @return the member, null if the user is not a member
+	 */
+	private JSONObject findMember(String memberPath) {
+		try {
+			return (JSONObject) executeGetRequest(memberPath, null, null, false);
+		} catch (UnknownUidException e) {
+			return null;
+		}
+	}
+
+	private boolean hasMembers(String objectPath, List<String> userIds, int accessLevel) {
+		for (String userId : userIds) {
+			try {
+				JSONObject member = (JSONObject) executeGetRequest(objectPath + MEMBERS + "/" + userId, null, null,
+						false);
+				if (member.getInt(ATTR_ACCESS_LEVEL) != accessLevel) {
+					return false;
+				}
+			} catch (UnknownUidException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	// return map with access lever, that represent integer, and list of user's id
 	// (access lever "0" represent name of each members with their access level)
 	protected Map<Integer, List<String>> getMembers(URIBuilder uribuilderMember) {
@@ -228,7 +343,7 @@ public class GroupOrProjectProcessing extends ObjectProcessing {
 		return uribuilderMember;
 	}
 
-	protected void addAttributeForMembers(ConnectorObjectBuilder builder, ResultsHandler handler, String path) {
+	protected void addAttributeForMembers(ConnectorObjectBuilder builder, String path) {
 		URIBuilder uribuilderMember = createRequestForMembers(path);
 		Map<Integer, List<String>> members = getMembers(uribuilderMember);
 
@@ -252,6 +367,11 @@ public class GroupOrProjectProcessing extends ObjectProcessing {
 		}
 	}
 
+	@Override
+	protected EnrichmentPlan planEnrichment(OperationOptions options) {
+		return super.planEnrichment(options).add(Enrichment.MEMBERS, MEMBER_ATTRIBUTES);
+	}
+
 	public void updateDeltaMultiValuesForGroupOrProject(Uid uid, Set<AttributeDelta> attributesDelta,
 			OperationOptions options, String path) {
 
@@ -301,7 +421,9 @@ public class GroupOrProjectProcessing extends ObjectProcessing {
 
 					Boolean create = true;
 					LOGGER.ok("json: {0}", json.toString());
-					createPutOrPostRequest(new Uid(userID), sbPath.toString(), json, create);
+					String memberPath = sbPath.toString() + "/" + userID;
+					createPutOrPostRequest(new Uid(userID), sbPath.toString(), json, create, null,
+							() -> findMember(memberPath));
 				}
 			}
 		}
@@ -21,16 +21,16 @@ package com.evolveum.polygon.connector.gitlab.rest;
  */
 
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeDelta;
 import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
@@ -42,14 +42,19 @@ import org.identityconnectors.framework.common.objects.ObjectClassInfoBuilder;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.ContainsAllValuesFilter;
 import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
 import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
 import org.identityconnectors.framework.common.objects.filter.Filter;
-import org.json.JSONArray;
+import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
 import org.json.JSONObject;
 
+import com.evolveum.polygon.connector.gitlab.rest.EnrichmentPlan.Enrichment;
+
 public class GroupProcessing extends GroupOrProjectProcessing {
 
 	private static final String ATTR_PROJECTS = "projects";
@@ -59,12 +64,17 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 	private static final String ATTR_PARENT_ID = "parent_id";
 	private static final String ATTR_FULL_NAME = "full_name";
 	private static final String ATTR_FULL_PATH = "full_path";
+	private static final String DESCENDANT_GROUPS = "/descendant_groups";
 
 	
 	public GroupProcessing(GitlabRestConfiguration configuration, CloseableHttpClient httpclient) {
 		super(configuration, httpclient);
 	}
 
+	public GroupProcessing(ObjectProcessing operation) {
+		super(operation);
+	}
+
 	public void buildGroupObjectClass(SchemaBuilder schemaBuilder) {
 		ObjectClassInfoBuilder groupObjClassBuilder = new ObjectClassInfoBuilder();
 
@@ -100,7 +110,8 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 		groupObjClassBuilder.addAttributeInfo(attrFullPathBuilder.build());
 
 		AttributeInfoBuilder avatarBuilder = new AttributeInfoBuilder(ATTR_AVATAR);
-		avatarBuilder.setType(byte[].class).setCreateable(false).setUpdateable(false).setReadable(true);
+		avatarBuilder.setType(byte[].class).setCreateable(false).setUpdateable(false).setReadable(true)
+				.setReturnedByDefault(false);
 		groupObjClassBuilder.addAttributeInfo(avatarBuilder.build());
 
 		AttributeInfoBuilder attrRequestAccessEnabledBuilder = new AttributeInfoBuilder(ATTR_REQUEST_ACCESS_ENABLED);
@@ -153,33 +164,33 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 
 		AttributeInfoBuilder attrMembersBuilder = new AttributeInfoBuilder(ATTR_MEMBERS_WITH_NAME);
 		attrMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(false).setUpdateable(false)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		groupObjClassBuilder.addAttributeInfo(attrMembersBuilder.build());
 
 		// multivalued: TRUE && createable: TRUE && updateable: TRUE && readable: TRUE
 		AttributeInfoBuilder attrGuestMembersBuilder = new AttributeInfoBuilder(ATTR_GUEST_MEMBERS);
 		attrGuestMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		groupObjClassBuilder.addAttributeInfo(attrGuestMembersBuilder.build());
 
 		AttributeInfoBuilder attrReporterMembersBuilder = new AttributeInfoBuilder(ATTR_REPORTER_MEMBERS);
 		attrReporterMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		groupObjClassBuilder.addAttributeInfo(attrReporterMembersBuilder.build());
 
 		AttributeInfoBuilder attrDeveloperMembersBuilder = new AttributeInfoBuilder(ATTR_DEVELOPER_MEMBERS);
 		attrDeveloperMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		groupObjClassBuilder.addAttributeInfo(attrDeveloperMembersBuilder.build());
 
 		AttributeInfoBuilder attrMasterMembersBuilder = new AttributeInfoBuilder(ATTR_MASTER_MEMBERS);
 		attrMasterMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		groupObjClassBuilder.addAttributeInfo(attrMasterMembersBuilder.build());
 
 		AttributeInfoBuilder attrOwnerMembersBuilder = new AttributeInfoBuilder(ATTR_OWNER_MEMBERS);
 		attrOwnerMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		groupObjClassBuilder.addAttributeInfo(attrOwnerMembersBuilder.build());
 
 		schemaBuilder.defineObjectClass(groupObjClassBuilder.build());
@@ -218,9 +229,9 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 			if (!json.has(ATTR_PARENT_ID) && s.length > 1) {
 				String parentFullPath = fullPath.substring(0, fullPath.lastIndexOf('/'));
 
-				JSONObject parent = findGroupByFullPath(parentFullPath, operationOptions);
-				if (parent != null) {
-					json.put(ATTR_PARENT_ID, parent.getInt(UID));
+				Integer parentId = findGroupIdByFullPath(parentFullPath, false);
+				if (parentId != null) {
+					json.put(ATTR_PARENT_ID, parentId);
 				}
 			}
 		}
@@ -230,7 +241,26 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 
 		Uid returnUid = null;
 		if (json.length() != 0) {
-			returnUid = createPutOrPostRequest(uid, GROUPS, json, create, ATTR_FULL_PATH);
+			// a group of a managed name may be created or renamed
+			configuration.getManagedGroupScope().invalidate();
+			GroupIndex groupIndex = configuration.getGroupIndex();
+			if (!create) {
+				// path or parent may change
+				groupIndex.remove(Integer.parseInt(uid.getUidValue()));
+			}
+			try {
+				returnUid = createPutOrPostRequest(uid, GROUPS, json, create, ATTR_FULL_PATH,
+						() -> findCreatedGroup(json));
+			} finally {
+				// also after a failure, the group may have been created anyway; a
+				// search running meanwhile may have loaded the subtree without it
+				if (json.has(ATTR_PARENT_ID)) {
+					groupIndex.childrenChanged(json.getInt(ATTR_PARENT_ID));
+				}
+				if (!create) {
+					groupIndex.remove(Integer.parseInt(uid.getUidValue()));
+				}
+			}
 		}
 		return returnUid;
 	}
@@ -262,7 +292,74 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 		return builder;
 	}
 
+	/**
+	 * Snapshot of the current groups, a sync started with it returns groups
+	 * changed from now on.
+	 */
+	public SyncToken getLatestSyncTokenForGroup() {
+		requireSnapshotSync();
+		return getLatestSnapshotToken(ObjectClass.GROUP, GROUPS, getGroupListingParameters());
+	}
+
+	/**
+	 * GitLab groups have no change timestamp, groups are always synchronized
+	 * by the snapshot diff (see {@link SnapshotSync}), which needs
+	 * syncSnapshotDirectory. Member changes do not change the listing, with
+	 * auditEventSync they are read from the audit events since the time of
+	 * the previous snapshot.
+	 */
+	public void syncGroups(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+		requireSnapshotSync();
+		// taken before reading, groups with member changes while reading are returned again next time
+		String serverTime = readServerTime(GROUPS);
+		try (SnapshotSync snapshot = new SnapshotSync(ObjectClass.GROUP, configuration.getSyncSnapshotDirectory(),
+				token)) {
+			final EnrichmentPlan plan = planEnrichment(options);
+			// a sync interrupted in the middle starts again from the previous token
+			if (!syncSnapshotChanges(snapshot, GROUPS, getGroupListingParameters(), handler,
+					group -> convertGroup(group, plan), plan.hasEnrichments())) {
+				return;
+			}
+
+			if (snapshot.hasPrevious() && "true".equals(configuration.getAuditEventSync())) {
+				AuditEventProcessing auditEventProcessing = new AuditEventProcessing(this);
+				for (Integer groupId : auditEventProcessing.getEntitiesWithMemberChanges(
+						AuditEventProcessing.ENTITY_TYPE_GROUP, snapshot.getPreviousTime())) {
+					if (snapshot.getChange(groupId) != null || !snapshot.exists(groupId)) {
+						// already returned or deleted
+						continue;
+					}
+					JSONObject group;
+					try {
+						group = findGroupByID(String.valueOf(groupId), null);
+					} catch (UnknownUidException e) {
+						LOGGER.ok("Group {0} with member changes does not exist anymore", groupId);
+						continue;
+					}
+					if (group != null && !handleSyncDelta(handler, snapshot.getDeltaToken(), convertGroup(group, plan),
+							SyncDeltaType.UPDATE)) {
+						return;
+					}
+				}
+			}
+			finishSnapshotSync(snapshot, ObjectClass.GROUP, handler, serverTime);
+		}
+	}
+
+	// the snapshot of all groups does not fit in a sync token stored on every cycle
+	private void requireSnapshotSync() {
+		if (!configuration.isSnapshotSyncEnabled()) {
+			throw new ConfigurationException("Live synchronization of groups needs syncSnapshotDirectory");
+		}
+	}
+
+	private Map<String, String> getGroupListingParameters() {
+		// GitLab supports keyset pagination of groups only ordered by name
+		return getListingParameters(configuration.getGroupsPagination(), ATTR_NAME, null, null);
+	}
+
 	public void executeQueryForGroup(Filter query, ResultsHandler handler, OperationOptions options) {
+		final EnrichmentPlan plan = planEnrichment(options);
 		if (query instanceof EqualsFilter) {
 			if (((EqualsFilter) query).getAttribute() instanceof Uid) {
 				Uid uid = (Uid) ((EqualsFilter) query).getAttribute();
@@ -272,17 +369,15 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 				StringBuilder sbPath = new StringBuilder();
 				sbPath.append(GROUPS).append("/").append(uid.getUidValue());
 				JSONObject group = (JSONObject) executeGetRequest(sbPath.toString(), null, options, false);
-				processingObjectFromGET(group, handler, sbPath.toString());
+				handler.handle(convertGroup(group, plan));
 			} else if (((EqualsFilter) query).getAttribute() instanceof Name) {
 				Name name = (Name) ((EqualsFilter) query).getAttribute();
 				if (name.getNameValue() == null) {
 					invalidAttributeValue("Name", query);
 				}
-				JSONObject group = findGroupByFullPath(name.getNameValue(), options);
+				JSONObject group = findGroupByFullPath(name.getNameValue());
 				if (group != null) {
-					StringBuilder sbPath = new StringBuilder();
-					sbPath.append(GROUPS).append("/").append(group.getInt(UID));
-					processingObjectFromGET(group, handler, sbPath.toString());
+					handler.handle(convertGroup(group, plan));
 				}
 			} else {
 				StringBuilder sb = new StringBuilder();
@@ -301,8 +396,8 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 				}
 				Map<String, String> parameters = new HashMap<String, String>();
 				parameters.put(SEARCH, allValues.get(0).toString());
-				JSONArray groups = (JSONArray) executeGetRequest(GROUPS, parameters, options, true);
-				processingObjectFromGET(groups, handler);
+				executeSearchRequest(GROUPS, parameters, options, handler, group -> convertGroup(group, plan),
+						plan.hasEnrichments());
 			} else {
 				StringBuilder sb = new StringBuilder();
 				sb.append("Illegal search with attribute ").append(((ContainsFilter) query).getAttribute().getName())
@@ -310,9 +405,15 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 				LOGGER.error(sb.toString());
 				throw new InvalidAttributeValueException(sb.toString());
 			}
+		} else if (query instanceof StartsWithFilter
+				&& ((StartsWithFilter) query).getAttribute().getName().equals("__NAME__")) {
+			String prefix = ((StartsWithFilter) query).getValue();
+			if (prefix == null) {
+				invalidAttributeValue("__NAME__", query);
+			}
+			searchGroupsByFullPathPrefix(prefix, handler, options, plan);
 		} else if (query instanceof ContainsAllValuesFilter) {
-			// Implemented the use of the "/memberships" route to optimize the query of the
-			// accesses of each user
+			// groups where all the users are members with the access level, see searchByMembers
 			if (((ContainsAllValuesFilter) query).getAttribute().getName().equals(ATTR_GUEST_MEMBERS)
 					|| ((ContainsAllValuesFilter) query).getAttribute().getName().equals(ATTR_REPORTER_MEMBERS)
 					|| ((ContainsAllValuesFilter) query).getAttribute().getName().equals(ATTR_DEVELOPER_MEMBERS)
@@ -327,53 +428,12 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 					}
 				}
 
-				String uid = String.valueOf(allValues.get(0));
-
-				JSONArray groupsWithMPMembers = new JSONArray();
-
-				UserProcessing userProcessing = new UserProcessing(configuration, httpclient);
-				Map<Integer, Integer> groupByAccess = userProcessing.getUserAccess(USERS + "/" + uid + "/" + USERS_MEMBERSHIPS_URL, UserProcessing.TYPE_MEMBERSHIPS_GROUP);
-
-
-				for (int groupID : groupByAccess.keySet()) {
-					URIBuilder uribuilderMember = createRequestForMembers(GROUPS + "/" + groupID);
-					Map<Integer, List<String>> mapMembersGroup = getMembers(uribuilderMember);
-
-
-					final List<String> membersGroup;
-					switch (((ContainsAllValuesFilter) query).getAttribute().getName()) {
-						case ATTR_GUEST_MEMBERS:
-							membersGroup = mapMembersGroup.get(10);
-							break;
-						case ATTR_REPORTER_MEMBERS:
-							membersGroup = mapMembersGroup.get(20);
-							break;
-						case ATTR_DEVELOPER_MEMBERS:
-							membersGroup = mapMembersGroup.get(30);
-							break;
-						case ATTR_MASTER_MEMBERS:
-							membersGroup = mapMembersGroup.get(40);
-							break;
-						case ATTR_OWNER_MEMBERS:
-							membersGroup = mapMembersGroup.get(50);
-							break;
-						default:
-							membersGroup = null;
-							break;
-
-					}
-
-					if (membersGroup == null) {
-						continue;
-					}
-
-					if (new HashSet<>(membersGroup).containsAll(allValues)) {
-						final JSONObject group = findGroupByID(Integer.toString(groupID), options);
-						groupsWithMPMembers.put(group);
-					}
-				}
-				LOGGER.info("groupsWithMPMembers -  members: {0}", groupsWithMPMembers);
-				processingObjectFromGET(groupsWithMPMembers, handler);
+				Map<String, String> parameters = new HashMap<>();
+				parameters.put("with_custom_attributes", "no");
+				parameters.put("with_projects", "no");
+				searchByMembers(GROUPS, UserProcessing.TYPE_MEMBERSHIPS_GROUP,
+						getAccessLevel(((ContainsAllValuesFilter) query).getAttribute().getName()), allValues,
+						parameters, options, group -> handler.handle(convertGroup(group, plan)));
 			} else {
 				StringBuilder sb = new StringBuilder();
 				sb.append("Illegal search with attribute ").append(((ContainsAllValuesFilter) query).getAttribute().getName())
@@ -382,8 +442,11 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 				throw new InvalidAttributeValueException(sb.toString());
 			}
 		} else if (query == null) {
-			JSONArray groups = (JSONArray) executeGetRequest(GROUPS, null, options, true);
-			processingObjectFromGET(groups, handler);
+			// GitLab supports keyset pagination of groups only ordered by name
+			Map<String, String> listingParameters = getListingParameters(configuration.getGroupsPagination(),
+					ATTR_NAME, null, options);
+			executeSearchRequest(GROUPS, listingParameters, options, handler, group -> convertGroup(group, plan),
+					plan.hasEnrichments());
 		} else {
 			StringBuilder sb = new StringBuilder();
 			sb.append("Unexpected filter ").append(query.getClass());
@@ -392,19 +455,107 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 		}
 	}
 
-	private JSONObject findGroupByFullPath(String fullPath, OperationOptions options) {
+	/**
+	 * Groups with full path starting with the prefix. All descendants of a
+	 * group are searched by prefix "full/path/", read by one listing of
+	 * /groups/:id/descendant_groups of the group before the last slash, which
+	 * also loads the subtree to the group index.
+	 */
+	private void searchGroupsByFullPathPrefix(String prefix, ResultsHandler handler, OperationOptions options,
+			EnrichmentPlan plan) {
+		String lowerCasePrefix = prefix.toLowerCase(Locale.ROOT);
+		int slash = prefix.lastIndexOf('/');
+		if (slash <= 0) {
+			Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put(SEARCH, prefix);
+			executeSearchRequest(GROUPS, parameters, options, handler,
+					group -> group.getString(ATTR_FULL_PATH).toLowerCase(Locale.ROOT).startsWith(lowerCasePrefix)
+							? convertGroup(group, plan) : null,
+					plan.hasEnrichments());
+			return;
+		}
+		Integer ancestorId = findGroupIdByFullPath(prefix.substring(0, slash), true);
+		if (ancestorId == null) {
+			LOGGER.ok("No group {0}, no descendants", prefix.substring(0, slash));
+			return;
+		}
+		GroupIndex groupIndex = configuration.getGroupIndex();
+		groupIndex.clearSubtree(ancestorId);
+		StringBuilder sbPath = new StringBuilder();
+		sbPath.append(GROUPS).append("/").append(ancestorId).append(DESCENDANT_GROUPS);
+		// descendant_groups supports offset pagination only
+		boolean finished = executeSearchRequest(sbPath.toString(), new HashMap<String, String>(), options,
+				handler, group -> {
+					groupIndex.put(group);
+					return group.getString(ATTR_FULL_PATH).toLowerCase(Locale.ROOT).startsWith(lowerCasePrefix)
+							? convertGroup(group, plan) : null;
+				}, plan.hasEnrichments());
+		if (finished && (options == null || options.getPagedResultsOffset() == null)) {
+			groupIndex.setSubtreeLoaded(ancestorId);
+		}
+	}
+
+	/**
+	 * GitLab accepts the URL-encoded full path in place of the group id.
+	 *
+	 * @return null if there is no group with the full path
+	 */
+	private JSONObject findGroupByFullPath(String fullPath) {
 		Map<String, String> parameters = new HashMap<>();
-		parameters.put("search", fullPath);
-		JSONArray groups = (JSONArray) executeGetRequest(GROUPS, parameters, options, true);
-
-		for (int i = 0; i < groups.length(); i++) {
-			JSONObject group = groups.getJSONObject(i);
-			// full_path is case-insensitive
-			if (group.getString(ATTR_FULL_PATH).equalsIgnoreCase(fullPath)) {
-				return group;
-			}
+		parameters.put("with_projects", "false");
+		JSONObject group;
+		try {
+			group = executeGetRequestForSegment(GROUPS, fullPath, parameters);
+		} catch (UnknownUidException e) {
+			return null;
 		}
-		return null;
+		// full_path is case-insensitive
+		if (!group.getString(ATTR_FULL_PATH).equalsIgnoreCase(fullPath)) {
+			return null;
+		}
+		configuration.getGroupIndex().put(group);
+		return group;
+	}
+
+	/**
+	 * @param trustLoadedSubtree
+	 *            a path missing in a loaded subtree of the group index is not
+	 *            looked up; only for searches, a group created outside of the
+	 *            connector is missing there until the subtree expires
+	 * @return null if there is no group with the full path
+	 */
+	private Integer findGroupIdByFullPath(String fullPath, boolean trustLoadedSubtree) {
+		GroupIndex groupIndex = configuration.getGroupIndex();
+		Integer groupId = groupIndex.getId(fullPath);
+		if (groupId != null || (trustLoadedSubtree && groupIndex.isCovered(fullPath))) {
+			return groupId;
+		}
+		JSONObject group = findGroupByFullPath(fullPath);
+		return group == null ? null : group.getInt(UID);
+	}
+
+	/**
+	 * @return the group of the create request, null if it does not exist
+	 */
+	private JSONObject findCreatedGroup(JSONObject json) {
+		if (!json.has(ATTR_PATH)) {
+			return null;
+		}
+		String path = json.getString(ATTR_PATH);
+		if (!json.has(ATTR_PARENT_ID)) {
+			return findGroupByFullPath(path);
+		}
+		final JSONObject[] created = { null };
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put(SEARCH, path);
+		executeGetRequest(GROUPS + "/" + json.get(ATTR_PARENT_ID) + "/subgroups", parameters, null, subgroup -> {
+			if (path.equalsIgnoreCase(subgroup.optString(ATTR_PATH))) {
+				created[0] = subgroup;
+				return false;
+			}
+			return true;
+		});
+		return created[0];
 	}
 
 	private JSONObject findGroupByID(String groupID, OperationOptions options) {
@@ -421,20 +572,17 @@ public class GroupProcessing extends GroupOrProjectProcessing {
 		return null;
 	}
 
-	private void processingObjectFromGET(JSONObject group, ResultsHandler handler, String sbPath) {
-		byte[] avatarPhoto = getAvatarPhoto(group, ATTR_AVATAR_URL, ATTR_AVATAR);
+	private ConnectorObject convertGroup(JSONObject group, EnrichmentPlan plan) {
+		configuration.getGroupIndex().put(group);
+		byte[] avatarPhoto = null;
+		if (plan.contains(Enrichment.AVATAR)) {
+			avatarPhoto = getAvatarPhoto(group, ATTR_AVATAR_URL, ATTR_AVATAR);
+		}
 		ConnectorObjectBuilder builder = convertGroupJSONObjectToConnectorObject(group, avatarPhoto);
-		addAttributeForMembers(builder, handler, sbPath);
-		ConnectorObject connectorObject = builder.build();
-		handler.handle(connectorObject);
-	}
-
-	private void processingObjectFromGET(JSONArray groups, ResultsHandler handler) {
-		JSONObject group;
-		for (int i = 0; i < groups.length(); i++) {
-			group = groups.getJSONObject(i);
-			processingObjectFromGET(group, handler, GROUPS + "/" + group.get(UID));
+		if (plan.contains(Enrichment.MEMBERS)) {
+			addAttributeForMembers(builder, GROUPS + "/" + group.get(UID));
 		}
+		return builder.build();
 	}
 
 	public void updateDeltaMultiValues(Uid uid, Set<AttributeDelta> attributes, OperationOptions options) {
@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import org.json.JSONObject;
+
+/**
+ * Callback receiving objects of a paged GitLab listing one by one as soon as
+ * they are parsed from the response, see
+ * {@link ObjectProcessing#executeGetRequest(String, java.util.Map, org.identityconnectors.framework.common.objects.OperationOptions, JSONObjectHandler)}.
+ */
+public interface JSONObjectHandler {
+
+	/**
+	 * @return false if no more objects are wanted, reading of next pages stops
+	 */
+	boolean handle(JSONObject object);
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.logging.Log;
+import org.json.JSONObject;
+
+/**
+ * groupsToManage of the configuration, parsed once and shared by all
+ * connector instances of the configuration. The names are resolved to group
+ * ids on first use by a search per name, not by a listing of all groups; the
+ * ids expire and are resolved again, groups created, changed or deleted by
+ * the connector drop them right away.
+ */
+public class ManagedGroupScope {
+
+	private static final Log LOGGER = Log.getLog(ManagedGroupScope.class);
+
+	private static final long EXPIRATION = TimeUnit.MINUTES.toMillis(5);
+	// shorter search terms are not accepted by GitLab
+	private static final int MIN_SEARCH_LENGTH = 3;
+
+	// lower case names, null if all groups are managed
+	private final Set<String> names;
+	private Set<Integer> groupIds;
+	private long expires;
+
+	public ManagedGroupScope(String groupsToManage) {
+		if (groupsToManage == null || groupsToManage.isEmpty()) {
+			names = null;
+			return;
+		}
+		Set<String> parsed = new LinkedHashSet<String>();
+		for (String value : groupsToManage.toLowerCase(Locale.ROOT).split(",")) {
+			if (!value.trim().isEmpty()) {
+				parsed.add(value.trim());
+			}
+		}
+		names = parsed.isEmpty() ? null : Collections.unmodifiableSet(parsed);
+	}
+
+	/**
+	 * @return true if the group or project name is managed, always without
+	 *         groupsToManage
+	 */
+	public boolean contains(String name) {
+		return names == null || (name != null && names.contains(name.toLowerCase(Locale.ROOT)));
+	}
+
+	/**
+	 * Ids of the groups whose name or path is one of the names, resolved by
+	 * the processing if they are not known or expired.
+	 *
+	 * @return empty set without groupsToManage or if no group matches
+	 */
+	public synchronized Set<Integer> getGroupIds(ObjectProcessing processing) {
+		if (names == null) {
+			return Collections.emptySet();
+		}
+		if (groupIds == null || expires < System.currentTimeMillis()) {
+			groupIds = Collections.unmodifiableSet(resolve(processing));
+			expires = System.currentTimeMillis() + EXPIRATION;
+			LOGGER.info("groupsToManage {0} resolved to group ids {1}", names, groupIds);
+		}
+		return groupIds;
+	}
+
+	/**
+	 * Drops the resolved ids, a group was created, renamed or deleted.
+	 */
+	public synchronized void invalidate() {
+		groupIds = null;
+	}
+
+	private Set<Integer> resolve(ObjectProcessing processing) {
+		final Set<Integer> ids = new HashSet<Integer>();
+		boolean searchable = true;
+		for (String name : names) {
+			searchable &= name.length() >= MIN_SEARCH_LENGTH;
+		}
+		if (!searchable) {
+			processing.executeGetRequest(ObjectProcessing.GROUPS, null, null, group -> {
+				addIfManaged(group, ids);
+				return true;
+			});
+			return ids;
+		}
+		for (String name : names) {
+			Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put(ObjectProcessing.SEARCH, name);
+			processing.executeGetRequest(ObjectProcessing.GROUPS, parameters, null, group -> {
+				addIfManaged(group, ids);
+				return true;
+			});
+		}
+		return ids;
+	}
+
+	private void addIfManaged(JSONObject group, Set<Integer> ids) {
+		// search matches substrings of the name and path
+		if (names.contains(group.optString("name").toLowerCase(Locale.ROOT))
+				|| names.contains(group.optString("path").toLowerCase(Locale.ROOT))) {
+			ids.add(group.getInt("id"));
+		}
+	}
+}
@@ -21,13 +21,26 @@ package com.evolveum.polygon.connector.gitlab.rest;
  */
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -35,8 +48,10 @@ import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.*;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.identityconnectors.common.StringUtil;
@@ -51,16 +66,29 @@ import org.identityconnectors.framework.common.exceptions.InvalidPasswordExcepti
 import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
 import org.identityconnectors.framework.common.exceptions.PermissionDeniedException;
 import org.identityconnectors.framework.common.exceptions.PreconditionFailedException;
+import org.identityconnectors.framework.common.exceptions.RetryableException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
 import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.identityconnectors.framework.spi.Configuration;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.evolveum.polygon.connector.gitlab.rest.EnrichmentPlan.Enrichment;
 
 public class ObjectProcessing {
 
@@ -86,6 +114,12 @@ public class ObjectProcessing {
 	protected static final String SEARCH = "search";
 	protected static final String PAGE = "page";
 	protected static final String PER_PAGE = "per_page";
+	protected static final String PAGINATION = "pagination";
+	protected static final String ORDER_BY = "order_by";
+	protected static final String SORT = "sort";
+	protected static final String UPDATED_AFTER = "updated_after";
+	// sync token value of a sync reading the whole listing
+	protected static final String SYNC_FROM_START = "start";
 	protected static final String PROJECT_NAME = "Project";
 	protected static final String SERVICE_ACCOUNT_NAME = "ServiceAccount";
 
@@ -97,13 +131,17 @@ public class ObjectProcessing {
 	protected static final String ATTR_AVATAR_URL = "avatar_url";
 	protected static final String ATTR_AVATAR = "avatar";
 	protected static final String ATTR_CREATED_AT = "created_at";
+	protected static final String ATTR_UPDATED_AT = "updated_at";
 
 	protected static final String UID = "id"; // ID
 	protected static final String ATTR_USERNAME = "username";
-	private URIBuilder uriBuilder;
+	private final String protocol;
+	private final String host;
 	protected CloseableHttpClient httpclient;
 
 	protected GitlabRestConfiguration configuration;
+	// retries left to the operation this instance serves, shared with its workers
+	private final AtomicInteger retryBudget;
 
 	public long firstStartTime;
 	public long firstEndTime;
@@ -116,8 +154,22 @@ public class ObjectProcessing {
 	public long thirdDuration;
 
 	public ObjectProcessing(GitlabRestConfiguration configuration, CloseableHttpClient httpclient) {
+		this(configuration, httpclient, new AtomicInteger(configuration.getRetryBudget()));
+	}
+
+	/**
+	 * Processing of another object class within the connector operation of
+	 * the given processing, the retry budget of the operation is shared.
+	 */
+	protected ObjectProcessing(ObjectProcessing operation) {
+		this(operation.configuration, operation.httpclient, operation.retryBudget);
+	}
+
+	private ObjectProcessing(GitlabRestConfiguration configuration, CloseableHttpClient httpclient,
+			AtomicInteger retryBudget) {
 		this.configuration = configuration;
 		this.httpclient = httpclient;
+		this.retryBudget = retryBudget;
 
 		StringBuilder sbHost = new StringBuilder();
 		sbHost.append(this.configuration.getLoginURL()).append(HOST_POSTFIX_API);
@@ -126,7 +178,8 @@ public class ObjectProcessing {
 		if (this.configuration.getProtocol() != null && !this.configuration.getProtocol().isEmpty()) {
 			protocol = this.configuration.getProtocol();
 		}
-		this.uriBuilder = new URIBuilder().setScheme(protocol).setHost(sbHost.toString());
+		this.protocol = protocol;
+		this.host = sbHost.toString();
 	}
 
 	public void test() {
@@ -147,22 +200,92 @@ public class ObjectProcessing {
 		callRequest(request, false);
 	}
 
+	/**
+	 * @return new builder for the API endpoint, builders are not shared
+	 * because requests may run concurrently
+	 */
 	public URIBuilder getURIBuilder() {
-		return this.uriBuilder;
+		return new URIBuilder().setScheme(protocol).setHost(host);
 	}
 
+	/**
+	 * Every request of the connector goes through here: it fails at once
+	 * while the circuit breaker of the host is open, waits for the shared rate
+	 * limiter, and a request failed by a transient error is sent again after a
+	 * backoff as far as {@link RetryPolicy} allows it and the retry budget of
+	 * the operation is not spent.
+	 *
+	 * @throws RetryPolicy.OutcomeUnknownException
+	 *             if a request which is not idempotent failed after it may
+	 *             have been processed
+	 */
 	public CloseableHttpResponse execute(HttpUriRequest request) {
-		try {
-			CloseableHttpResponse response = httpclient.execute(request);
+		RequestRateLimiter rateLimiter = configuration.getTransport().getRateLimiter();
+		RetryPolicy retryPolicy = configuration.getTransport().getRetryPolicy();
+		CircuitBreaker circuitBreaker = configuration.getTransport().getCircuitBreaker(request.getURI().getHost());
+		boolean idempotent = RetryPolicy.isIdempotent(request);
+		for (int retry = 0;; retry++) {
+			if (retry > 0) {
+				retryPolicy.backoff(retry);
+			}
+			circuitBreaker.acquirePermission();
+			rateLimiter.acquire();
+			CloseableHttpResponse response;
+			long start = System.currentTimeMillis();
+			try {
+				response = httpclient.execute(request);
+			} catch (IOException e) {
+				circuitBreaker.record(true, System.currentTimeMillis() - start);
+				boolean safe = idempotent || RetryPolicy.isNotSent(e);
+				if (RetryPolicy.isTransient(e) && safe && mayRetry(retryPolicy, retry)) {
+					LOGGER.warn("Request {0} failed: {1}, retry {2}", request, e.getLocalizedMessage(), retry + 1);
+					continue;
+				}
+				StringBuilder sb = new StringBuilder();
+				sb.append("It was not possible execute HttpUriRequest:").append(request).append(";")
+						.append(e.getLocalizedMessage());
+				if (RetryPolicy.isTransient(e) && !safe) {
+					throw new RetryPolicy.OutcomeUnknownException(sb.toString(), e);
+				}
+				throw new ConnectorIOException(sb.toString(), e);
+			}
 			LOGGER.info("request: {0}", request);
+			rateLimiter.update(response);
+
+			int statusCode = response.getStatusLine().getStatusCode();
+			circuitBreaker.record(statusCode >= 500, System.currentTimeMillis() - start);
+			if (!RetryPolicy.isTransient(statusCode)) {
+				return response;
+			}
+			boolean safe = idempotent || RetryPolicy.isRejected(statusCode);
+			if (safe && mayRetry(retryPolicy, retry)) {
+				LOGGER.warn("Request {0} failed with HTTP {1}, retry {2}", request, statusCode, retry + 1);
+				EntityUtils.consumeQuietly(response.getEntity());
+				responseClose(response);
+				continue;
+			}
+			if (!safe) {
+				EntityUtils.consumeQuietly(response.getEntity());
+				responseClose(response);
+				StringBuilder sb = new StringBuilder();
+				sb.append("HTTP error ").append(statusCode).append(" ").append(response.getStatusLine().getReasonPhrase())
+						.append(" for request ").append(request).append(", it may have been processed");
+				throw new RetryPolicy.OutcomeUnknownException(sb.toString());
+			}
+			// retries spent, processResponseErrors reports the error
 			return response;
-		} catch (IOException e) {
-			StringBuilder sb = new StringBuilder();
-			sb.append("It was not possible execute HttpUriRequest:").append(request).append(";")
-					.append(e.getLocalizedMessage());
-			throw new ConnectorIOException(sb.toString(), e);
 		}
+	}
 
+	private boolean mayRetry(RetryPolicy retryPolicy, int retry) {
+		if (retry >= retryPolicy.getMaxRetries()) {
+			return false;
+		}
+		if (retryBudget.decrementAndGet() < 0) {
+			LOGGER.warn("Retry budget of the operation is spent");
+			return false;
+		}
+		return true;
 	}
 
 	private JSONObject callRequest(HttpEntityEnclosingRequestBase request, JSONObject json, Boolean parseResult) {
@@ -211,12 +334,10 @@ public class ObjectProcessing {
 		// result as output
 		HttpEntity responseEntity = response.getEntity();
 		try {
-			// String result = EntityUtils.toString(responseEntity);
-			byte[] byteResult = EntityUtils.toByteArray(responseEntity);
-			String result = new String(byteResult, "ISO-8859-2");
+			JSONObject result = parseEntity(responseEntity, tokener -> new JSONObject(tokener));
 			responseClose(response);
 			LOGGER.info("result: {0}", result);
-			return new JSONObject(result);
+			return result;
 		} catch (IOException e) {
 			StringBuilder sb = new StringBuilder();
 			sb.append("Failed creating result from HttpEntity: ").append(responseEntity).append(";")
@@ -253,12 +374,10 @@ public class ObjectProcessing {
 
 		HttpEntity responseEntity = response.getEntity();
 		try {
-			byte[] byteResult = EntityUtils.toByteArray(responseEntity);
-			String result = new String(byteResult, "UTF-8");
-			// String result = EntityUtils.toString(responseEntity);
+			JSONObject result = parseEntity(responseEntity, tokener -> new JSONObject(tokener));
 			responseClose(response);
 			LOGGER.info("result: {0}", result);
-			return new JSONObject(result);
+			return result;
 		} catch (IOException e) {
 			StringBuilder sb = new StringBuilder();
 			sb.append("Failed creating result from HttpEntity: ").append(responseEntity).append(";")
@@ -293,15 +412,12 @@ public class ObjectProcessing {
 		if (!parseResult) {
 			return null;
 		}
-		response.getAllHeaders();
 		HttpEntity responseEntity = response.getEntity();
 		try {
-			byte[] byteResult = EntityUtils.toByteArray(responseEntity);
-
-			String result = new String(byteResult, "UTF-8");
+			JSONArray result = parseEntity(responseEntity, tokener -> new JSONArray(tokener));
 			responseClose(response);
 			LOGGER.info("result: {0}", result);
-			return new JSONArray(result);
+			return result;
 		} catch (IOException e) {
 			StringBuilder sb = new StringBuilder();
 			sb.append("Failed creating result from HttpEntity: ").append(responseEntity).append(";")
@@ -316,6 +432,17 @@ public class ObjectProcessing {
 	}
 
 	protected Uid createPutOrPostRequest(Uid uid, String path, JSONObject json, Boolean create, String nameHintKey) {
+		return createPutOrPostRequest(uid, path, json, create, nameHintKey, null);
+	}
+
+	/**
+	 * @param existenceCheck
+	 *            of a create: finds the object when the outcome of the POST
+	 *            is not known, it is sent again only if the object does not
+	 *            exist; null fails the create
+	 */
+	protected Uid createPutOrPostRequest(Uid uid, String path, JSONObject json, Boolean create, String nameHintKey,
+			ExistenceCheck existenceCheck) {
 		URIBuilder uriBuilder = getURIBuilder();
 
 		URI uri;
@@ -339,18 +466,32 @@ public class ObjectProcessing {
 			throw new ConnectorException(sb.toString(), e);
 		}
 
-		HttpEntityEnclosingRequestBase request;
-		if (create) {
-			// create post with created URI
-			request = new HttpPost(uri);
-		} else {
-			// create put with created URI
-			request = new HttpPut(uri);
-		}
+		JSONObject jsonOutput = null;
+		while (jsonOutput == null) {
+			HttpEntityEnclosingRequestBase request;
+			if (create) {
+				// create post with created URI
+				request = new HttpPost(uri);
+			} else {
+				// create put with created URI
+				request = new HttpPut(uri);
+			}
 
-		// execute request
-		JSONObject jsonOutput;
-		jsonOutput = callRequest(request, json, true);
+			// execute request
+			try {
+				jsonOutput = callRequest(request, json, true);
+			} catch (RetryPolicy.OutcomeUnknownException e) {
+				if (existenceCheck == null || !mayRetry(configuration.getTransport().getRetryPolicy(), 0)) {
+					throw e;
+				}
+				jsonOutput = existenceCheck.find();
+				if (jsonOutput == null) {
+					LOGGER.warn("Object of {0} was not created: {1}, creating again", uri, e.getMessage());
+				} else {
+					LOGGER.warn("Object of {0} was created despite the failure: {1}", uri, e.getMessage());
+				}
+			}
+		}
 		// throw exception if id not exist !!!
 		int id = jsonOutput.getInt("id");
 		String stringId = String.valueOf(id);
@@ -508,6 +649,204 @@ public class ObjectProcessing {
 		LOGGER.info("executeGetRequest path {0}, parameters: {1}, options: {2}, resultIsArray: {3}",
 				path, parameters, options, resultIsArray);
 
+		if (resultIsArray) {
+			// small listings only, large ones should be streamed via JSONObjectHandler
+			final JSONArray merged = new JSONArray();
+			executeGetRequest(path, parameters, options, object -> {
+				merged.put(object);
+				return true;
+			});
+			return merged;
+		}
+
+		URIBuilder uriBuilder = createGetURIBuilder(path, parameters, options);
+		try {
+			HttpGet req = new HttpGet(uriBuilder.build());
+			addAuthHeaders(req);
+
+			return readGetResponse(execute(req), tokener -> new JSONObject(tokener));
+		}
+		catch (URISyntaxException | IOException e) {
+			throw new ConnectorException("Error paginating “" + path + "”: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * GET of one object addressed by a path segment which may contain a slash,
+	 * like the full path of a group or project in place of its id. The
+	 * segment is URL-encoded, slash as %2F.
+	 */
+	protected JSONObject executeGetRequestForSegment(String path, String segment, Map<String, String> parameters) {
+		URIBuilder uriBuilder = createGetURIBuilder(path, parameters, null);
+		List<String> pathSegments = new ArrayList<String>(uriBuilder.getPathSegments());
+		pathSegments.add(segment);
+		uriBuilder.setPathSegments(pathSegments);
+		try {
+			HttpGet request = new HttpGet(uriBuilder.build());
+			addAuthHeaders(request);
+			return readGetResponse(execute(request), tokener -> new JSONObject(tokener));
+		} catch (URISyntaxException | IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to read ").append(path).append("/").append(segment).append("; ")
+					.append(e.getLocalizedMessage());
+			throw new ConnectorIOException(sb.toString(), e);
+		}
+	}
+
+	/**
+	 * Streams a paged listing: follows X-Next-Page (or the Link header) and
+	 * hands the objects of every page to objectHandler one by one. The body
+	 * of a page is received completely and the connection released before the
+	 * first object is handed over, objectHandler may issue its own requests;
+	 * the objects are parsed from the body one at a time, so a page is held
+	 * as its compressed body (spooled to a temporary file beyond
+	 * pageMemorySize) and the current object only. If options ask for a concrete
+	 * page (paged results offset), only that page is read.
+	 * <p>
+	 * When the first response of offset pagination carries X-Total-Pages, the
+	 * remaining pages are prefetched concurrently (pagePrefetchWindow pages in
+	 * flight) and still handed over in page order on the calling thread.
+	 *
+	 * @return false if objectHandler stopped the listing
+	 */
+	protected boolean executeGetRequest(
+			String path,
+			Map<String, String> parameters,
+			OperationOptions options,
+			JSONObjectHandler objectHandler) {
+
+		LOGGER.info("executeGetRequest path {0}, parameters: {1}, options: {2}", path, parameters, options);
+
+		URIBuilder uriBuilder = createGetURIBuilder(path, parameters, options);
+		boolean onePage = options != null && options.getPagedResultsOffset() != null;
+
+		try {
+			String nextUrl = uriBuilder.build().toString();
+
+			do {
+				HttpResponse resp = executeGetPage(nextUrl);
+				String xNext = getHeaderValue(resp, "X-Next-Page");
+				String xTotalPages = getHeaderValue(resp, "X-Total-Pages");
+				String link = parseLinkHeader(resp.getFirstHeader("Link"));
+				if (!handleBufferedPage((SpooledEntity) resp.getEntity(), objectHandler)) {
+					LOGGER.info("Listing of {0} stopped by handler", path);
+					return false;
+				}
+
+				if (onePage) {
+					nextUrl = null;
+				} else if (StringUtils.isNotBlank(xNext)) {
+					if (configuration.getPagePrefetchWindow() > 1 && StringUtils.isNumeric(xTotalPages)) {
+						return prefetchPages(path, nextUrl, Integer.parseInt(xNext), Integer.parseInt(xTotalPages),
+								objectHandler);
+					}
+					nextUrl = new URIBuilder(nextUrl)
+							.setParameter("page", xNext)
+							.build()
+							.toString();
+				} else {
+					nextUrl = link;
+				}
+			}
+			while (nextUrl != null);
+			return true;
+		}
+		catch (URISyntaxException | IOException e) {
+			throw new ConnectorException("Error paginating “" + path + "”: " + e.getMessage(), e);
+		}
+	}
+
+	private boolean prefetchPages(String path, final String url, final int firstPage, final int lastPage,
+			JSONObjectHandler objectHandler) {
+		LOGGER.info("Prefetching pages {0} - {1} of {2}", firstPage, lastPage, path);
+
+		// pages wait for their turn as received bodies, they are parsed when handed over
+		Iterator<Callable<SpooledEntity>> pageRequests = new Iterator<Callable<SpooledEntity>>() {
+			private int page = firstPage;
+
+			@Override
+			public boolean hasNext() {
+				return page <= lastPage;
+			}
+
+			@Override
+			public Callable<SpooledEntity> next() {
+				final int requestedPage = page++;
+				return () -> {
+					SpooledEntity body = (SpooledEntity) executeGetPage(
+							new URIBuilder(url).setParameter("page", String.valueOf(requestedPage)).build().toString())
+							.getEntity();
+					if (body != null && Thread.currentThread().isInterrupted()) {
+						// cancelled while received, nobody takes the page over
+						body.close();
+						throw new InterruptedException();
+					}
+					return body;
+				};
+			}
+		};
+
+		OrderedTaskWindow<SpooledEntity> window = new OrderedTaskWindow<SpooledEntity>(
+				configuration.getTransport().getExecutor(), configuration.getPagePrefetchWindow(),
+				page -> handleBufferedPage(page, objectHandler));
+		boolean finished = window.run(pageRequests);
+		if (!finished) {
+			LOGGER.info("Listing of {0} stopped by handler", path);
+		}
+		return finished;
+	}
+
+	/**
+	 * Parses the objects of a page one by one and hands each to
+	 * objectHandler before the next one is read, only the current object is
+	 * held in memory. A body with a single object is a page of one object.
+	 *
+	 * @return false if objectHandler stopped the listing
+	 */
+	static boolean handlePage(JSONTokener tokener, JSONObjectHandler objectHandler) {
+		char first = tokener.nextClean();
+		if (first == '{') {
+			tokener.back();
+			return objectHandler.handle(new JSONObject(tokener));
+		}
+		if (first != '[' || tokener.nextClean() == ']') {
+			return true;
+		}
+		tokener.back();
+		while (true) {
+			if (!objectHandler.handle(new JSONObject(tokener))) {
+				return false;
+			}
+			char next = tokener.nextClean();
+			if (next == ']') {
+				return true;
+			}
+			if (next != ',') {
+				throw tokener.syntaxError("Expected a ',' or ']'");
+			}
+		}
+	}
+
+	/**
+	 * Parses a received page, decompressing it as it is read, and deletes its
+	 * temporary file.
+	 */
+	private boolean handleBufferedPage(SpooledEntity page, JSONObjectHandler objectHandler) {
+		try {
+			return parseEntity(page == null ? null : page.decoded(), tokener -> handlePage(tokener, objectHandler));
+		} catch (IOException e) {
+			// the page is in memory or in its temporary file, or its compressed body is corrupt
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to read received page; ").append(e.getLocalizedMessage());
+			throw new ConnectorIOException(sb.toString(), e);
+		} finally {
+			if (page != null) {
+				page.close();
+			}
+		}
+	}
+
+	private URIBuilder createGetURIBuilder(String path, Map<String, String> parameters, OperationOptions options) {
 		URIBuilder uriBuilder = getURIBuilder();
 		uriBuilder.clearParameters();
 		uriBuilder.setPath(path);
@@ -520,61 +859,371 @@ public class ObjectProcessing {
 		if (parameters != null) {
 			parameters.forEach((k, v) -> { if (v != null) uriBuilder.addParameter(k, v); });
 		}
+		return uriBuilder;
+	}
 
+	/**
+	 * Parses the body of GET response and closes it, non 2xx status ends with
+	 * the exception of processResponseErrors, UnknownUidException for 404
+	 */
+	private <T> T readGetResponse(CloseableHttpResponse resp, Function<JSONTokener, T> parser) throws IOException {
 		try {
-			String nextUrl = uriBuilder.build().toString();
-			JSONArray merged = new JSONArray();
-			Object single = null;
+			processResponseErrors(resp);
+			return parseEntity(resp.getEntity(), parser);
+		} finally {
+			resp.close();
+		}
+	}
 
-			do {
-				HttpGet req = new HttpGet(nextUrl);
-				addAuthHeaders(req);
-
-				CloseableHttpResponse resp = execute(req);
-				int status = resp.getStatusLine().getStatusCode();
-				if (status < 200 || status >= 300) {
-					String err = EntityUtils.toString(resp.getEntity());
-					resp.close();
-					throw new ConnectorException("GitLab paging request failed: HTTP "
-							+ status + " → " + err);
+	/**
+	 * GET of a listing page. The body is received as it came over the wire
+	 * and the connection released before anything is parsed, a slow handler
+	 * of the objects does not hold the connection and cannot make GitLab or a
+	 * proxy cut the page off. The body stays compressed, it is held in memory
+	 * up to pageMemorySize and spooled to a temporary file beyond it; it is
+	 * decompressed while it is parsed. A body cut off by a connection error is
+	 * read again like a failed request, no object of the page was handed over
+	 * yet.
+	 *
+	 * @return the response with a {@link SpooledEntity}, which the caller
+	 *         closes
+	 */
+	private HttpResponse executeGetPage(String url) throws IOException {
+		RetryPolicy retryPolicy = configuration.getTransport().getRetryPolicy();
+		for (int retry = 0;; retry++) {
+			if (retry > 0) {
+				retryPolicy.backoff(retry);
+			}
+			HttpGet request = new HttpGet(url);
+			addAuthHeaders(request);
+			// the body is not decompressed by the client, see SpooledEntity.decoded()
+			request.setConfig(configuration.getTransport().getPageRequestConfig());
+			if ("true".equals(configuration.getCompressResponses())) {
+				request.addHeader("Accept-Encoding", "gzip,deflate");
+			}
+			CloseableHttpResponse response = execute(request);
+			try {
+				processResponseErrors(response);
+				if (response.getEntity() != null) {
+					response.setEntity(SpooledEntity.receive(response.getEntity(), configuration.getPageMemorySize()));
 				}
-
-				String body = EntityUtils.toString(resp.getEntity());
-				String trimmed = body.trim();
-				if (resultIsArray) {
-					JSONArray pageArr;
-					if (trimmed.startsWith("[")) {
-						pageArr = new JSONArray(trimmed);
-					} else if (trimmed.startsWith("{")) {
-						pageArr = new JSONArray().put(new JSONObject(trimmed));
-					} else {
-						pageArr = new JSONArray();
-					}
-					for (int i = 0; i < pageArr.length(); i++) {
-						merged.put(pageArr.get(i));
-					}
-				} else if (single == null) {
-					single = new JSONObject(trimmed);
+				return response;
+			} catch (IOException e) {
+				if (!RetryPolicy.isTransient(e) || !mayRetry(retryPolicy, retry)) {
+					throw e;
 				}
+				LOGGER.warn("Reading of page {0} failed, retry {1}: {2}", url, retry + 1, e.getLocalizedMessage());
+			} finally {
+				response.close();
+			}
+		}
+	}
 
-				String xNext = getHeaderValue(resp, "X-Next-Page");
-				if (StringUtils.isNotBlank(xNext)) {
-					nextUrl = new URIBuilder(nextUrl)
-							.setParameter("page", xNext)
-							.build()
-							.toString();
-				} else {
-					nextUrl = parseLinkHeader(resp.getFirstHeader("Link"));
+	/**
+	 * Parses the JSON body as it is read from the connection, a gzip or
+	 * deflate body is decompressed on the way (see compressResponses); the
+	 * body is never held as bytes or String. The rest of the body is read
+	 * afterwards, the connection goes back to the pool.
+	 */
+	private static <T> T parseEntity(HttpEntity entity, Function<JSONTokener, T> parser) throws IOException {
+		if (entity == null) {
+			return parser.apply(new JSONTokener(""));
+		}
+		ContentType contentType = ContentType.get(entity);
+		Charset charset = contentType == null || contentType.getCharset() == null ? StandardCharsets.UTF_8
+				: contentType.getCharset();
+		try {
+			T result = parser.apply(new JSONTokener(new InputStreamReader(entity.getContent(), charset)));
+			EntityUtils.consume(entity);
+			return result;
+		} catch (JSONException e) {
+			// the tokener wraps errors of the connection
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Looks up the object of a create whose outcome is not known.
+	 */
+	protected interface ExistenceCheck {
+
+		/**
+		 * @return the object, null if it does not exist
+		 */
+		JSONObject find();
+	}
+
+	/**
+	 * Converts JSON object of a listing to connector object, possibly with
+	 * additional requests for attributes not present in the listing.
+	 */
+	protected interface ObjectConverter {
+
+		/**
+		 * @return null if the object does not match the search and is skipped
+		 */
+		ConnectorObject convert(JSONObject object);
+	}
+
+	/**
+	 * Streams a listing to the results handler. If the conversion needs
+	 * additional requests (parallel is true), objects are converted on worker
+	 * threads, at most enrichmentParallelism at a time, and handed to the
+	 * results handler in listing order on the calling thread.
+	 *
+	 * @return false if the results handler stopped the search
+	 */
+	protected boolean executeSearchRequest(String path, Map<String, String> parameters, OperationOptions options,
+			ResultsHandler handler, ObjectConverter converter, boolean parallel) {
+		return executeSearchRequest(path, parameters, options, handler, converter, parallel, object -> true);
+	}
+
+	/**
+	 * Streams a listing sorted by a range condition, the listing ends at the
+	 * first object which is not in the range.
+	 *
+	 * @param inRange
+	 *            false for the first object behind the range, it is not
+	 *            converted
+	 * @return false if the results handler stopped the search
+	 */
+	protected boolean executeSearchRequest(String path, Map<String, String> parameters, OperationOptions options,
+			ResultsHandler handler, ObjectConverter converter, boolean parallel, JSONObjectHandler inRange) {
+		final boolean[] endOfRange = { false };
+		if (!parallel || configuration.getEnrichmentParallelism() <= 1) {
+			return executeGetRequest(path, parameters, options, object -> {
+				if (!inRange.handle(object)) {
+					endOfRange[0] = true;
+					return false;
+				}
+				ConnectorObject connectorObject = converter.convert(object);
+				return connectorObject == null || handler.handle(connectorObject);
+			}) || endOfRange[0];
+		}
+		OrderedTaskWindow<ConnectorObject> enrichment = new OrderedTaskWindow<ConnectorObject>(
+				configuration.getTransport().getExecutor(), configuration.getEnrichmentParallelism(),
+				connectorObject -> connectorObject == null || handler.handle(connectorObject));
+		try {
+			return (executeGetRequest(path, parameters, options, object -> {
+				if (!inRange.handle(object)) {
+					endOfRange[0] = true;
+					return false;
 				}
+				return enrichment.submit(() -> converter.convert(object));
+			}) || endOfRange[0]) && enrichment.drain();
+		} finally {
+			enrichment.cancel();
+		}
+	}
+
+	/**
+	 * Additional requests needed for the attributes to get, subclasses add the
+	 * enrichments of their object class.
+	 */
+	protected EnrichmentPlan planEnrichment(OperationOptions options) {
+		EnrichmentPlan plan = new EnrichmentPlan(options);
+		if (!"false".equals(configuration.getObjectAvatar())) {
+			plan.add(Enrichment.AVATAR, ATTR_AVATAR);
+		}
+		return plan;
+	}
+
+	/**
+	 * Parameters for a full listing in the pagination mode selected for the
+	 * object class. Keyset pagination is not used when options ask for a
+	 * concrete page, that is only possible with offset pagination.
+	 */
+	protected Map<String, String> getListingParameters(String pagination, String orderBy,
+			Map<String, String> parameters, OperationOptions options) {
+		Map<String, String> listingParameters = new HashMap<String, String>();
+		if (parameters != null) {
+			listingParameters.putAll(parameters);
+		}
+		if (!GitlabRestConfiguration.PAGINATION_KEYSET.equals(pagination)
+				|| (options != null && options.getPagedResultsOffset() != null)) {
+			return listingParameters;
+		}
+		listingParameters.put(PAGINATION, GitlabRestConfiguration.PAGINATION_KEYSET);
+		listingParameters.put(ORDER_BY, orderBy);
+		listingParameters.put(SORT, "asc");
+		if (options == null || options.getPageSize() == null) {
+			// maximum page size of keyset pagination
+			listingParameters.put(PER_PAGE, "100");
+		}
+		return listingParameters;
+	}
+
+	/**
+	 * Hands a created or updated object to the sync handler.
+	 *
+	 * @return false if the handler does not want more deltas
+	 */
+	protected boolean handleSyncDelta(SyncResultsHandler handler, SyncToken token, ConnectorObject connectorObject) {
+		return handleSyncDelta(handler, token, connectorObject, SyncDeltaType.CREATE_OR_UPDATE);
+	}
+
+	protected boolean handleSyncDelta(SyncResultsHandler handler, SyncToken token, ConnectorObject connectorObject,
+			SyncDeltaType deltaType) {
+		return handler.handle(new SyncDeltaBuilder().setDeltaType(deltaType).setToken(token)
+				.setObject(connectorObject).build());
+	}
+
+	/**
+	 * Hands a deleted object to the sync handler.
+	 *
+	 * @return false if the handler does not want more deltas
+	 */
+	protected boolean handleDeleteDelta(SyncResultsHandler handler, SyncToken token, ObjectClass objectClass,
+			Uid uid) {
+		return handler.handle(new SyncDeltaBuilder().setDeltaType(SyncDeltaType.DELETE).setToken(token)
+				.setObjectClass(objectClass).setUid(uid).build());
+	}
 
-				resp.close();
+	/**
+	 * Reads the cheap listing, diffs it against the snapshot and enriches and
+	 * returns only new and changed objects.
+	 *
+	 * @return false if the handler stopped the sync, the snapshot is not
+	 *         complete then
+	 */
+	protected boolean syncSnapshotChanges(SnapshotSync snapshot, String path, Map<String, String> parameters,
+			SyncResultsHandler handler, ObjectConverter converter, boolean parallel) {
+		return executeSearchRequest(path, parameters, null,
+				connectorObject -> handleSyncDelta(handler, snapshot.getDeltaToken(), connectorObject,
+						snapshot.getChange(Integer.parseInt(connectorObject.getUid().getUidValue()))),
+				object -> snapshot.diff(object) == null ? null : converter.convert(object), parallel);
+	}
+
+	/**
+	 * Returns objects missing in the listing as deleted and hands the token of
+	 * the current snapshot to the handler.
+	 */
+	protected void finishSnapshotSync(SnapshotSync snapshot, ObjectClass objectClass, SyncResultsHandler handler,
+			String serverTime) {
+		for (Integer id : snapshot.getDeletedIds()) {
+			if (!handleDeleteDelta(handler, snapshot.getDeltaToken(), objectClass, new Uid(String.valueOf(id)))) {
+				return;
 			}
-			while (resultIsArray && nextUrl != null);
+		}
+		if (handler instanceof SyncTokenResultsHandler) {
+			((SyncTokenResultsHandler) handler).handleResult(snapshot.finish(serverTime));
+		}
+	}
 
-			return resultIsArray ? merged : single;
+	/**
+	 * Snapshot of the current listing, a sync started with it returns objects
+	 * changed from now on.
+	 */
+	protected SyncToken getLatestSnapshotToken(ObjectClass objectClass, String path, Map<String, String> parameters) {
+		String serverTime = readServerTime(path);
+		try (SnapshotSync snapshot = new SnapshotSync(objectClass, configuration.getSyncSnapshotDirectory(), null)) {
+			executeGetRequest(path, parameters, null, object -> {
+				snapshot.diff(object);
+				return true;
+			});
+			return snapshot.finish(serverTime);
 		}
-		catch (URISyntaxException | IOException e) {
-			throw new ConnectorException("Error paginating “" + path + "”: " + e.getMessage(), e);
+	}
+
+	/**
+	 * Reads only the first object of a listing, with per_page=1 in the
+	 * parameters.
+	 *
+	 * @return null if the listing is empty
+	 */
+	protected JSONObject readFirstObject(String path, Map<String, String> parameters) {
+		URIBuilder uriBuilder = createGetURIBuilder(path, parameters, null);
+		final JSONObject[] first = { null };
+		try {
+			HttpGet request = new HttpGet(uriBuilder.build());
+			addAuthHeaders(request);
+			CloseableHttpResponse response = execute(request);
+			readGetResponse(response, tokener -> handlePage(tokener, object -> {
+				first[0] = object;
+				return false;
+			}));
+		} catch (URISyntaxException | IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to read first object of ").append(path).append("; ")
+					.append(e.getLocalizedMessage());
+			throw new ConnectorException(sb.toString(), e);
+		}
+		return first[0];
+	}
+
+	/**
+	 * Current time of the GitLab server from the Date header of a one-object
+	 * page, so time based sync tokens do not depend on the clock of the
+	 * connector host.
+	 *
+	 * @return time in ISO 8601 format
+	 */
+	protected String readServerTime(String path) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put(PER_PAGE, "1");
+		URIBuilder uriBuilder = createGetURIBuilder(path, parameters, null);
+		Date serverTime = null;
+		try {
+			HttpGet request = new HttpGet(uriBuilder.build());
+			addAuthHeaders(request);
+			CloseableHttpResponse response = execute(request);
+			Header date = response.getFirstHeader("Date");
+			// the status is checked and the connection released
+			readGetResponse(response, tokener -> handlePage(tokener, object -> true));
+			if (date != null) {
+				serverTime = DateUtils.parseDate(date.getValue());
+			}
+		} catch (URISyntaxException | IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to read server time from ").append(path).append("; ")
+					.append(e.getLocalizedMessage());
+			throw new ConnectorException(sb.toString(), e);
+		}
+		if (serverTime == null) {
+			LOGGER.warn("GitLab response has no Date header, local time is used");
+			serverTime = new Date();
+		}
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(serverTime);
+	}
+
+	/**
+	 * Hash of the content of a listing object, independent of the order of
+	 * JSON keys.
+	 */
+	protected static int contentHash(JSONObject object) {
+		CRC32 crc = new CRC32();
+		updateContentHash(crc, object);
+		return (int) crc.getValue();
+	}
+
+	private static void updateContentHash(CRC32 crc, Object value) {
+		if (value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			List<String> keys = new ArrayList<String>(object.keySet());
+			Collections.sort(keys);
+			crc.update('{');
+			for (String key : keys) {
+				crc.update(key.getBytes(StandardCharsets.UTF_8));
+				crc.update(':');
+				updateContentHash(crc, object.get(key));
+				crc.update(',');
+			}
+			crc.update('}');
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			crc.update('[');
+			for (int i = 0; i < array.length(); i++) {
+				updateContentHash(crc, array.get(i));
+				crc.update(',');
+			}
+			crc.update(']');
+		} else {
+			crc.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
 		}
 	}
 
@@ -661,17 +1310,25 @@ public class ObjectProcessing {
 		if (object.has(attrURLName) && object.get(attrURLName) != null
 				&& !JSONObject.NULL.equals(object.get(attrURLName))) {
 
+			String attrURLValue = "";
+			if (String.valueOf(object.get(attrURLName)).startsWith(UPLOAD_URL)) {
+				attrURLValue = this.configuration.getProtocol() + PROTOCOL_APPENDER
+						+ this.configuration.getLoginURL() + String.valueOf(object.get(attrURLName));
+			} else {
+				attrURLValue = String.valueOf(object.get(attrURLName));
+			}
+
+			// avatar_url changes with the image, a cached avatar is never stale
+			AvatarCache avatarCache = this.configuration.getAvatarCache();
+			byte[] cachedAvatar = avatarCache.get(attrURLValue);
+			if (cachedAvatar != null) {
+				return cachedAvatar;
+			}
+
 			HttpEntity responseEntity = null;
 			CloseableHttpResponse response = null;
 			try {
 
-				String attrURLValue = "";
-				if (String.valueOf(object.get(attrURLName)).startsWith(UPLOAD_URL)) {
-					attrURLValue = this.configuration.getProtocol() + PROTOCOL_APPENDER
-							+ this.configuration.getLoginURL() + String.valueOf(object.get(attrURLName));
-				} else {
-					attrURLValue = String.valueOf(object.get(attrURLName));
-				}
 				URIBuilder uriPhoto = new URIBuilder(attrURLValue);
 				URI uri = uriPhoto.build();
 
@@ -710,6 +1367,7 @@ public class ObjectProcessing {
 
 				byte[] byteJPEG = EntityUtils.toByteArray(responseEntity);
 				responseClose(response);
+				avatarCache.put(attrURLValue, byteJPEG);
 				return byteJPEG;
 
 			} catch (IOException e) {
@@ -910,6 +1568,9 @@ public class ObjectProcessing {
 		} else if (statusCode == 409) {
 			responseClose(response);
 			throw new AlreadyExistsException(message);
+		} else if (statusCode == RequestRateLimiter.HTTP_TOO_MANY_REQUESTS) {
+			responseClose(response);
+			throw RetryableException.wrap(message, (Throwable) null);
 		}
 		// other codes
 		responseClose(response);
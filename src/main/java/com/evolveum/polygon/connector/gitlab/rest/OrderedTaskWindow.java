@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Runs tasks on the shared executor with at most "window" of them in flight
+ * and hands their results to the consumer in submission order, on the calling
+ * thread. When the consumer stops or a task fails, the outstanding tasks are
+ * cancelled.
+ * <p>
+ * Tasks are either pulled from an iterator by {@link #run(Iterator)} or
+ * pushed one by one by {@link #submit(Callable)} followed by {@link #drain()}
+ * and {@link #cancel()} in a finally block.
+ */
+public class OrderedTaskWindow<T> {
+
+	public interface ResultConsumer<T> {
+
+		/**
+		 * @return false if no more results are wanted
+		 */
+		boolean accept(T result);
+	}
+
+	private final ExecutorService executor;
+	private final int window;
+	private final ResultConsumer<T> consumer;
+	private final Deque<Future<T>> inFlight = new ArrayDeque<Future<T>>();
+	private boolean stopped;
+
+	public OrderedTaskWindow(ExecutorService executor, int window, ResultConsumer<T> consumer) {
+		this.executor = executor;
+		this.window = Math.max(1, window);
+		this.consumer = consumer;
+	}
+
+	/**
+	 * @return false if the consumer stopped before all tasks were consumed
+	 */
+	public boolean run(Iterator<Callable<T>> tasks) {
+		try {
+			while (tasks.hasNext()) {
+				if (!submit(tasks.next())) {
+					return false;
+				}
+			}
+			return drain();
+		} finally {
+			cancel();
+		}
+	}
+
+	/**
+	 * Submits the task, when the window is full waits for the oldest task and
+	 * hands its result to the consumer.
+	 *
+	 * @return false if the consumer does not want more results
+	 */
+	public boolean submit(Callable<T> task) {
+		if (stopped) {
+			return false;
+		}
+		inFlight.addLast(executor.submit(task));
+		while (inFlight.size() >= window) {
+			if (!consumeOldest()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for all submitted tasks and hands their results to the consumer.
+	 *
+	 * @return false if the consumer stopped
+	 */
+	public boolean drain() {
+		while (!inFlight.isEmpty()) {
+			if (!consumeOldest()) {
+				return false;
+			}
+		}
+		return !stopped;
+	}
+
+	/**
+	 * Cancels tasks not consumed yet, results of finished tasks which are
+	 * Closeable are closed.
+	 */
+	public void cancel() {
+		for (Future<T> future : inFlight) {
+			if (!future.cancel(true)) {
+				close(future);
+			}
+		}
+		inFlight.clear();
+	}
+
+	private void close(Future<T> future) {
+		try {
+			T result = future.get();
+			if (result instanceof Closeable) {
+				((Closeable) result).close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | CancellationException | IOException e) {
+			// the result is not used, nothing to report
+		}
+	}
+
+	private boolean consumeOldest() {
+		T result;
+		try {
+			result = inFlight.removeFirst().get();
+		} catch (ExecutionException e) {
+			cancel();
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			StringBuilder sb = new StringBuilder();
+			sb.append("Parallel request failed; ").append(cause.getLocalizedMessage());
+			throw new ConnectorException(sb.toString(), cause);
+		} catch (InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while waiting for parallel request", e);
+		}
+		if (!consumer.accept(result)) {
+			stopped = true;
+			cancel();
+			return false;
+		}
+		return true;
+	}
+}
@@ -22,15 +22,18 @@ package com.evolveum.polygon.connector.gitlab.rest;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeDelta;
 import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
@@ -42,14 +45,20 @@ import org.identityconnectors.framework.common.objects.ObjectClassInfoBuilder;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.ContainsAllValuesFilter;
 import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
 import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
 import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import com.evolveum.polygon.connector.gitlab.rest.EnrichmentPlan.Enrichment;
+
 public class ProjectProcessing extends GroupOrProjectProcessing {
 
 	private static final String ATTR_DEFAULT_BRANCH = "default_branch";
@@ -106,12 +115,19 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 	//private static final String ATTR_GROUP_NAME = "group_name";
 	private static final String ATTR_GROUP_FULL_PATH = "group_full_path";
 	private static final String ATTR_GROUP_ACCESS_LEVEL = "group_access_level";
+	private static final String PROJECTS_SHARED = "/projects/shared";
 	private static final String ATTR_GROUP_ACCESS = "group_access";
 
+	private static final ObjectClass PROJECT_OBJECT_CLASS = new ObjectClass(PROJECT_NAME);
+
 	public ProjectProcessing(GitlabRestConfiguration configuration, CloseableHttpClient httpclient) {
 		super(configuration, httpclient);
 	}
 
+	public ProjectProcessing(ObjectProcessing operation) {
+		super(operation);
+	}
+
 	public void buildProjectObjectClass(SchemaBuilder schemaBuilder) {
 		ObjectClassInfoBuilder projectObjClassBuilder = new ObjectClassInfoBuilder();
 
@@ -342,7 +358,7 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 
 		AttributeInfoBuilder avatarBuilder = new AttributeInfoBuilder(ATTR_AVATAR);
 		avatarBuilder.setType(byte[].class).setCreateable(false).setUpdateable(false).setReadable(true)
-				.setReturnedByDefault(true);
+				.setReturnedByDefault(false);
 		projectObjClassBuilder.addAttributeInfo(avatarBuilder.build());
 
 		// multivalued: TRUE && createable: FALSE && updateable: FALSE && readable: TRUE
@@ -353,7 +369,7 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 
 		AttributeInfoBuilder attrMembersBuilder = new AttributeInfoBuilder(ATTR_MEMBERS_WITH_NAME);
 		attrMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(false).setUpdateable(false)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		projectObjClassBuilder.addAttributeInfo(attrMembersBuilder.build());
 
 		AttributeInfoBuilder attrSharedWithGroupsWithNameBuilder = new AttributeInfoBuilder(
@@ -370,27 +386,27 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 
 		AttributeInfoBuilder attrGuestMembersBuilder = new AttributeInfoBuilder(ATTR_GUEST_MEMBERS);
 		attrGuestMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		projectObjClassBuilder.addAttributeInfo(attrGuestMembersBuilder.build());
 
 		AttributeInfoBuilder attrReporterMembersBuilder = new AttributeInfoBuilder(ATTR_REPORTER_MEMBERS);
 		attrReporterMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		projectObjClassBuilder.addAttributeInfo(attrReporterMembersBuilder.build());
 
 		AttributeInfoBuilder attrDeveloperMembersBuilder = new AttributeInfoBuilder(ATTR_DEVELOPER_MEMBERS);
 		attrDeveloperMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		projectObjClassBuilder.addAttributeInfo(attrDeveloperMembersBuilder.build());
 
 		AttributeInfoBuilder attrMasterMembersBuilder = new AttributeInfoBuilder(ATTR_MASTER_MEMBERS);
 		attrMasterMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		projectObjClassBuilder.addAttributeInfo(attrMasterMembersBuilder.build());
 
 		AttributeInfoBuilder attrOwnerMembersBuilder = new AttributeInfoBuilder(ATTR_OWNER_MEMBERS);
 		attrOwnerMembersBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		projectObjClassBuilder.addAttributeInfo(attrOwnerMembersBuilder.build());
 
 		AttributeInfoBuilder attrSharedWithGroupsMaxGuestBuilder = new AttributeInfoBuilder(
@@ -457,7 +473,8 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 		LOGGER.info("Project request: {0}", json.toString());
 
 		// Handling the case of Projects with fullpath
-		return createPutOrPostRequest(uid, PROJECTS, json, create, ATTR_PATH_WITH_NAMESPACE);
+		return createPutOrPostRequest(uid, PROJECTS, json, create, ATTR_PATH_WITH_NAMESPACE,
+				() -> findCreatedProject(json));
 		// return createPutOrPostRequest(uid, PROJECTS, json, create);
 	}
 
@@ -538,7 +555,120 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 		return builder;
 	}
 
+	/**
+	 * Current server time, a sync started with it returns projects updated
+	 * from now on. With syncSnapshotDirectory snapshot of the current
+	 * projects.
+	 */
+	public SyncToken getLatestSyncTokenForProject() {
+		if (configuration.isSnapshotSyncEnabled()) {
+			return getLatestSnapshotToken(PROJECT_OBJECT_CLASS, PROJECTS, getProjectListingParameters());
+		}
+		return new SyncToken(readServerTime(PROJECTS));
+	}
+
+	/**
+	 * Projects updated since the time in the token (updated_after). Member
+	 * changes do not change the project, with auditEventSync they are read
+	 * from the audit events. Deleted projects are not detected, unless the
+	 * projects are synchronized by the snapshot diff (syncSnapshotDirectory).
+	 */
+	public void syncProjects(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+		if (configuration.isSnapshotSyncEnabled()) {
+			syncProjectsBySnapshot(token, handler, options);
+			return;
+		}
+		// taken before reading, projects updated while reading are returned again next time
+		SyncToken latestToken = getLatestSyncTokenForProject();
+
+		Map<String, String> parameters = new HashMap<String, String>();
+		final SyncToken deltaToken = token == null ? new SyncToken(SYNC_FROM_START) : token;
+		if (!SYNC_FROM_START.equals(deltaToken.getValue())) {
+			parameters.put(UPDATED_AFTER, String.valueOf(deltaToken.getValue()));
+		}
+		LOGGER.info("syncProjects from token {0}, latest token {1}", deltaToken.getValue(), latestToken.getValue());
+
+		final EnrichmentPlan plan = planEnrichment(options);
+		// filled by the enrichment workers
+		final Set<Integer> synchronizedIds = ConcurrentHashMap.newKeySet();
+		Map<String, String> listingParameters = getListingParameters(configuration.getProjectsPagination(), UID,
+				parameters, null);
+		// a sync interrupted in the middle starts again from the previous token
+		boolean finished = executeSearchRequest(PROJECTS, listingParameters, null,
+				connectorObject -> handleSyncDelta(handler, deltaToken, connectorObject), project -> {
+					synchronizedIds.add(project.getInt(UID));
+					return convertProject(project, plan);
+				}, plan.hasEnrichments());
+
+		if (finished && "true".equals(configuration.getAuditEventSync())
+				&& !SYNC_FROM_START.equals(deltaToken.getValue())) {
+			AuditEventProcessing auditEventProcessing = new AuditEventProcessing(this);
+			for (Integer projectId : auditEventProcessing.getEntitiesWithMemberChanges(
+					AuditEventProcessing.ENTITY_TYPE_PROJECT, String.valueOf(deltaToken.getValue()))) {
+				if (synchronizedIds.contains(projectId)) {
+					continue;
+				}
+				JSONObject project;
+				try {
+					project = findProjectByID(String.valueOf(projectId), null);
+				} catch (UnknownUidException e) {
+					LOGGER.ok("Project {0} with member changes does not exist anymore", projectId);
+					continue;
+				}
+				if (project != null && !handleSyncDelta(handler, deltaToken, convertProject(project, plan))) {
+					finished = false;
+					break;
+				}
+			}
+		}
+
+		if (finished && handler instanceof SyncTokenResultsHandler) {
+			((SyncTokenResultsHandler) handler).handleResult(latestToken);
+		}
+	}
+
+	private void syncProjectsBySnapshot(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+		// taken before reading, projects with member changes while reading are returned again next time
+		String serverTime = readServerTime(PROJECTS);
+		try (SnapshotSync snapshot = new SnapshotSync(PROJECT_OBJECT_CLASS, configuration.getSyncSnapshotDirectory(),
+				token)) {
+			final EnrichmentPlan plan = planEnrichment(options);
+			if (!syncSnapshotChanges(snapshot, PROJECTS, getProjectListingParameters(), handler,
+					project -> convertProject(project, plan), plan.hasEnrichments())) {
+				return;
+			}
+
+			if (snapshot.hasPrevious() && "true".equals(configuration.getAuditEventSync())) {
+				AuditEventProcessing auditEventProcessing = new AuditEventProcessing(this);
+				for (Integer projectId : auditEventProcessing.getEntitiesWithMemberChanges(
+						AuditEventProcessing.ENTITY_TYPE_PROJECT, snapshot.getPreviousTime())) {
+					if (snapshot.getChange(projectId) != null || !snapshot.exists(projectId)) {
+						// already returned or deleted
+						continue;
+					}
+					JSONObject project;
+					try {
+						project = findProjectByID(String.valueOf(projectId), null);
+					} catch (UnknownUidException e) {
+						LOGGER.ok("Project {0} with member changes does not exist anymore", projectId);
+						continue;
+					}
+					if (project != null && !handleSyncDelta(handler, snapshot.getDeltaToken(),
+							convertProject(project, plan), SyncDeltaType.UPDATE)) {
+						return;
+					}
+				}
+			}
+			finishSnapshotSync(snapshot, PROJECT_OBJECT_CLASS, handler, serverTime);
+		}
+	}
+
+	private Map<String, String> getProjectListingParameters() {
+		return getListingParameters(configuration.getProjectsPagination(), UID, null, null);
+	}
+
 	public void executeQueryForProject(Filter query, ResultsHandler handler, OperationOptions options) {
+		final EnrichmentPlan plan = planEnrichment(options);
 		if (query instanceof EqualsFilter) {
 
 			if (((EqualsFilter) query).getAttribute() instanceof Uid) {
@@ -550,7 +680,7 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 				StringBuilder sbPath = new StringBuilder();
 				sbPath.append(PROJECTS).append("/").append(uid.getUidValue());
 				JSONObject project = (JSONObject) executeGetRequest(sbPath.toString(), null, options, false);
-				processingObjectFromGET(project, handler, sbPath.toString());
+				handler.handle(convertProject(project, plan));
 
 			} else if (((EqualsFilter) query).getAttribute().getName().equals(ATTR_VISIBILITY)) {
 				List<Object> allValues = ((EqualsFilter) query).getAttribute().getValue();
@@ -559,8 +689,8 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 				}
 				Map<String, String> parameters = new HashMap<String, String>();
 				parameters.put(ATTR_VISIBILITY, (String) allValues.get(0));
-				JSONArray projects = (JSONArray) executeGetRequest(PROJECTS, parameters, options, true);
-				processingObjectFromGET(projects, handler);
+				executeSearchRequest(PROJECTS, parameters, options, handler, project -> convertProject(project, plan),
+						plan.hasEnrichments());
 			} else {
 				StringBuilder sb = new StringBuilder();
 				sb.append("Illegal search with attribute ").append(((EqualsFilter) query).getAttribute().getName())
@@ -581,8 +711,8 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 				}
 				Map<String, String> parameters = new HashMap<String, String>();
 				parameters.put(SEARCH, allValues.get(0).toString());
-				JSONArray projects = (JSONArray) executeGetRequest(PROJECTS, parameters, options, true);
-				processingObjectFromGET(projects, handler);
+				executeSearchRequest(PROJECTS, parameters, options, handler, project -> convertProject(project, plan),
+						plan.hasEnrichments());
 
 			} else {
 				StringBuilder sb = new StringBuilder();
@@ -611,70 +741,11 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 						invalidAttributeValue(((ContainsAllValuesFilter) query).getAttribute().getName(), query);
 					}
 				}
-				// Implemented the use of the "/memberships" route to optimize the query of the
-				// accesses of each user
-
-				String REGEX = "[\\[\\]]";
-				String uid = (((ContainsAllValuesFilter) query).getAttribute().getValue()).toString();
-
-				uid = uid.replaceAll(REGEX, "");
-
-				StringBuilder sbPath = new StringBuilder();
-				sbPath.append(USERS).append("/").append(uid).append("/").append(USERS_MEMBERSHIPS_URL);
-				String TYPE_MEMBERSHIPS_GROUP = "Project";
-				Map<Integer, Integer> projectByAccess = new HashMap<Integer, Integer>();
-
-				JSONArray projectWithMPMembers = new JSONArray();
-
-				Integer countOfSameMember = 0;
-
-				UserProcessing userProcessing = new UserProcessing(configuration, httpclient);
-				projectByAccess = userProcessing.getUserAccess(sbPath.toString(), TYPE_MEMBERSHIPS_GROUP);
-
-				Iterator<Integer> it = projectByAccess.keySet().iterator();
-
-				JSONObject project = new JSONObject();
-
-				while (it.hasNext()) {
-					Object projectID = it.next();
-
-					StringBuilder sbProjectPath = new StringBuilder();
-					sbProjectPath.append(PROJECTS).append("/").append(projectID);
-
-					URIBuilder uribuilderMember = createRequestForMembers(sbProjectPath.toString());
-					Map<Integer, List<String>> mapMembersProjects = getMembers(uribuilderMember);
-
-					List<String> membersProject = null;
-					if (((ContainsAllValuesFilter) query).getAttribute().getName().equals(ATTR_GUEST_MEMBERS)) {
-						membersProject = mapMembersProjects.get(10);
-					}
-					if (((ContainsAllValuesFilter) query).getAttribute().getName().equals(ATTR_REPORTER_MEMBERS)) {
-						membersProject = mapMembersProjects.get(20);
-					}
-					if (((ContainsAllValuesFilter) query).getAttribute().getName().equals(ATTR_DEVELOPER_MEMBERS)) {
-						membersProject = mapMembersProjects.get(30);
-					}
-					if (((ContainsAllValuesFilter) query).getAttribute().getName().equals(ATTR_MASTER_MEMBERS)) {
-						membersProject = mapMembersProjects.get(40);
-					}
-					if (membersProject != null) {
-						for (Object MPProjectMember : allValues) {
-
-							for (String projectMember : membersProject) {
-								if (projectMember.equals((String) MPProjectMember)) {
-									countOfSameMember++;
-									break;
-								}
-							}
-						}
-						if (countOfSameMember == allValues.size()) {
-							project = findProjectByID(projectID.toString(), options);
-							projectWithMPMembers.put(project);
-						}
-					}
-				}
-				LOGGER.info("projectWithMPMembers -  members: {0}", projectWithMPMembers);
-				processingObjectFromGET(projectWithMPMembers, handler);
+				Map<String, String> parameters = new HashMap<>();
+				parameters.put("with_custom_attributes", "no");
+				searchByMembers(PROJECTS, UserProcessing.TYPE_MEMBERSHIPS_PROJECT,
+						getAccessLevel(((ContainsAllValuesFilter) query).getAttribute().getName()), allValues,
+						parameters, options, project -> handler.handle(convertProject(project, plan)));
 
 			} else if (((ContainsAllValuesFilter) query).getAttribute().getName()
 					.equals(ATTR_SHARED_WITH_GROUPS_ID_MAX_GUEST)
@@ -700,55 +771,8 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 					}
 				}
 
-				JSONArray projects = new JSONArray();
-				JSONArray partOfProjects = new JSONArray();
-				int iii = 1;
-
-					Map<String, String> parameters = new HashMap<String, String>();
-					parameters.put(PAGE, String.valueOf(iii));
-					parameters.put(PER_PAGE, "100");
-
-					partOfProjects = (JSONArray) executeGetRequest(PROJECTS, parameters, null, true);
-					Iterator<Object> iterator = partOfProjects.iterator();
-					while (iterator.hasNext()) {
-						Object project = iterator.next();
-						projects.put(project);
-					}
-					LOGGER.info("Value of PAGE : {0}", iii);
-					LOGGER.info("Value of ParfOfProjects Lenght : {0}", partOfProjects.length());
-					LOGGER.info("Value of Projects Lenght : {0}", projects.length());
-
-				JSONArray projectsSharedWithMPGroups = new JSONArray();
-				JSONObject project;
-				for (int i = 0; i < projects.length(); i++) {
-					project = projects.getJSONObject(i);
-					Integer countOfSameGroups = 0;
-
-					if (project.has(ATTR_SHARED_WITH_GROUPS)) {
-						Object valueObject = project.get(ATTR_SHARED_WITH_GROUPS);
-						if (valueObject != null && !JSONObject.NULL.equals(valueObject)
-								&& valueObject instanceof JSONArray) {
-							JSONArray objectArray = (JSONArray) valueObject;
-							for (int ii = 0; ii < objectArray.length(); ii++) {
-								if (objectArray.get(ii) instanceof JSONObject) {
-									JSONObject jsonObject = objectArray.getJSONObject(ii);
-									String groupId = String.valueOf(jsonObject.get(ATTR_GROUP_ID));
-									for (Object MPSharedWithGroup : allValues) {
-
-										if (groupId.equals((String) MPSharedWithGroup)) {
-											countOfSameGroups++;
-											break;
-										}
-									}
-									if (countOfSameGroups == allValues.size()) {
-										projectsSharedWithMPGroups.put(project);
-									}
-								}
-							}
-						}
-					}
-				}
-				processingObjectFromGET(projectsSharedWithMPGroups, handler);
+				searchSharedWithGroups(allValues,
+						getSharedAccessLevel(((ContainsAllValuesFilter) query).getAttribute().getName()), handler, plan);
 			} else {
 				StringBuilder sb = new StringBuilder();
 				sb.append("Illegal search with attribute ").append(((ContainsFilter) query).getAttribute().getName())
@@ -757,8 +781,10 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 				throw new InvalidAttributeValueException(sb.toString());
 			}
 		} else if (query == null) {
-			JSONArray projects = (JSONArray) executeGetRequest(PROJECTS, null, options, true);
-			processingObjectFromGET(projects, handler);
+			Map<String, String> listingParameters = getListingParameters(configuration.getProjectsPagination(), UID,
+					null, options);
+			executeSearchRequest(PROJECTS, listingParameters, options, handler, project -> convertProject(project, plan),
+					plan.hasEnrichments());
 		} else {
 			StringBuilder sb = new StringBuilder();
 			sb.append("Unexpected filter ").append(query.getClass());
@@ -767,6 +793,20 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 		}
 	}
 
+	/**
+	 * @return the project of the create request, null if it does not exist
+	 */
+	private JSONObject findCreatedProject(JSONObject json) {
+		if (!json.has(ATTR_PATH_WITH_NAMESPACE)) {
+			return null;
+		}
+		try {
+			return executeGetRequestForSegment(PROJECTS, json.getString(ATTR_PATH_WITH_NAMESPACE), null);
+		} catch (UnknownUidException e) {
+			return null;
+		}
+	}
+
 	private JSONObject findProjectByID(String projectID, OperationOptions options) {
 		Map<String, String> parameters = new HashMap<>();
 		parameters.put("with_custom_attributes", "no");
@@ -780,6 +820,92 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 		return null;
 	}
 
+	/**
+	 * Projects shared with all the groups at the access level, answered from
+	 * the side of the groups: /groups/:id/projects/shared of the other groups
+	 * narrows the candidates, the projects shared with the first group are
+	 * read page by page and checked against the candidates and the access
+	 * levels in shared_with_groups.
+	 */
+	private void searchSharedWithGroups(List<Object> groupIds, final int accessLevel, ResultsHandler handler,
+			final EnrichmentPlan plan) {
+		final Set<String> requested = new LinkedHashSet<String>();
+		for (Object groupId : groupIds) {
+			requested.add(String.valueOf(groupId));
+		}
+		if (requested.isEmpty()) {
+			return;
+		}
+		Iterator<String> iterator = requested.iterator();
+		String firstGroupId = iterator.next();
+		Set<Integer> candidates = null;
+		try {
+			while (iterator.hasNext() && (candidates == null || !candidates.isEmpty())) {
+				Set<Integer> shared = getSharedProjectIds(iterator.next());
+				if (candidates == null) {
+					candidates = shared;
+				} else {
+					candidates.retainAll(shared);
+				}
+			}
+			if (candidates != null && candidates.isEmpty()) {
+				return;
+			}
+			final Set<Integer> narrowed = candidates;
+			Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put(PER_PAGE, "100");
+			executeSearchRequest(GROUPS + "/" + firstGroupId + PROJECTS_SHARED, parameters, null, handler, project -> {
+				if ((narrowed == null || narrowed.contains(project.getInt(UID)))
+						&& getSharedGroupIds(project, accessLevel).containsAll(requested)) {
+					return convertProject(project, plan);
+				}
+				return null;
+			}, plan.hasEnrichments());
+		} catch (UnknownUidException e) {
+			LOGGER.ok("Group of {0} does not exist, no project is shared with it", requested);
+		}
+	}
+
+	private Set<Integer> getSharedProjectIds(String groupId) {
+		final Set<Integer> ids = new HashSet<Integer>();
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put(PER_PAGE, "100");
+		parameters.put("simple", "true");
+		executeGetRequest(GROUPS + "/" + groupId + PROJECTS_SHARED, parameters, null, project -> {
+			ids.add(project.getInt(UID));
+			return true;
+		});
+		return ids;
+	}
+
+	private Set<String> getSharedGroupIds(JSONObject project, int accessLevel) {
+		Set<String> groupIds = new HashSet<String>();
+		JSONArray sharedWithGroups = project.optJSONArray(ATTR_SHARED_WITH_GROUPS);
+		if (sharedWithGroups == null) {
+			return groupIds;
+		}
+		for (int i = 0; i < sharedWithGroups.length(); i++) {
+			JSONObject sharedWithGroup = sharedWithGroups.optJSONObject(i);
+			if (sharedWithGroup != null && sharedWithGroup.optInt(ATTR_GROUP_ACCESS_LEVEL) == accessLevel) {
+				groupIds.add(String.valueOf(sharedWithGroup.get(ATTR_GROUP_ID)));
+			}
+		}
+		return groupIds;
+	}
+
+	private static int getSharedAccessLevel(String sharedAttribute) {
+		switch (sharedAttribute) {
+		case ATTR_SHARED_WITH_GROUPS_ID_MAX_GUEST:
+			return 10;
+		case ATTR_SHARED_WITH_GROUPS_ID_MAX_REPORTER:
+			return 20;
+		case ATTR_SHARED_WITH_GROUPS_ID_MAX_DEVELOPER:
+			return 30;
+		default:
+			return 40;
+		}
+	}
+
 	private void addAttributeForSharedProjects(JSONObject object, ConnectorObjectBuilder builder) {
 
 		List<String> guestSharedWithGroup = new ArrayList<>();
@@ -841,24 +967,20 @@ public class ProjectProcessing extends GroupOrProjectProcessing {
 		}
 	}
 
-	private void processingObjectFromGET(JSONObject project, ResultsHandler handler, String sbPath) {
-		byte[] avaratPhoto = getAvatarPhoto(project, ATTR_AVATAR_URL, ATTR_AVATAR);
+	private ConnectorObject convertProject(JSONObject project, EnrichmentPlan plan) {
+		byte[] avaratPhoto = null;
+		if (plan.contains(Enrichment.AVATAR)) {
+			avaratPhoto = getAvatarPhoto(project, ATTR_AVATAR_URL, ATTR_AVATAR);
+		}
 		ConnectorObjectBuilder builder = convertProjectJSONObjectToConnectorObject(project, avaratPhoto);
+		// shared_with_groups come with the project itself, no request needed
 		addAttributeForSharedProjects(project, builder);
-		addAttributeForMembers(builder, handler, sbPath);
+		if (plan.contains(Enrichment.MEMBERS)) {
+			addAttributeForMembers(builder, PROJECTS + "/" + project.get(UID));
+		}
 		ConnectorObject connectorObject = builder.build();
 		LOGGER.info("addAtributeMembers, connectorObject: {0}", connectorObject.toString());
-		handler.handle(connectorObject);
-	}
-
-	private void processingObjectFromGET(JSONArray projects, ResultsHandler handler) {
-		JSONObject project;
-		for (int i = 0; i < projects.length(); i++) {
-			project = projects.getJSONObject(i);
-			StringBuilder sbPath = new StringBuilder();
-			sbPath.append(PROJECTS).append("/").append(project.get(UID));
-			processingObjectFromGET(project, handler, sbPath.toString());
-		}
+		return connectorObject;
 	}
 
 	public void updateDeltaMultiValues(Uid uid, Set<AttributeDelta> attributesDelta, OperationOptions options) {
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * Paces all requests of a configuration to the rate limit of GitLab, shared
+ * by the connector instances and worker threads through
+ * {@link GitlabHttpTransport}. A token bucket refills at the rate the server
+ * still allows in its current window (RateLimit-Remaining requests until
+ * RateLimit-Reset, with some headroom) or at requestRateLimit, whichever is
+ * lower. Retry-After, or a window with no requests left, stops all requests
+ * until the given time. Without any of them requests are not delayed.
+ */
+public class RequestRateLimiter {
+
+	private static final Log LOGGER = Log.getLog(RequestRateLimiter.class);
+
+	static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	// share of the remaining requests used, the rest stays for other clients of the token
+	private static final double HEADROOM = 0.9;
+	// pause after 429 without Retry-After
+	private static final long DEFAULT_PAUSE = TimeUnit.SECONDS.toMillis(1);
+
+	// permits per millisecond, 0 if not limited
+	private final double configuredRate;
+	private double serverRate;
+	private long serverRateExpires;
+	private double tokens;
+	private long lastRefill;
+	private long pausedUntil;
+
+	/**
+	 * @param requestsPerMinute
+	 *            fixed limit, 0 paces by the response headers only
+	 */
+	public RequestRateLimiter(int requestsPerMinute) {
+		configuredRate = requestsPerMinute > 0 ? requestsPerMinute / (double) TimeUnit.MINUTES.toMillis(1) : 0;
+		lastRefill = System.currentTimeMillis();
+		tokens = burst(configuredRate);
+	}
+
+	/**
+	 * Waits until the request may be sent.
+	 */
+	public void acquire() {
+		long wait;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			double rate = getRate(now);
+			wait = pausedUntil - now;
+			if (rate > 0) {
+				tokens = Math.min(burst(rate), tokens + (now - lastRefill) * rate);
+				// the permit is reserved now, concurrent callers queue behind it
+				tokens -= 1;
+				if (tokens < 0) {
+					wait = Math.max(wait, (long) Math.ceil(-tokens / rate));
+				}
+			}
+			lastRefill = now;
+		}
+		if (wait > 0) {
+			LOGGER.ok("Request delayed by {0} ms for the rate limit", wait);
+			sleep(wait);
+		}
+	}
+
+	/**
+	 * Reads the rate limit headers of a response.
+	 */
+	public void update(HttpResponse response) {
+		long now = System.currentTimeMillis();
+		int statusCode = response.getStatusLine().getStatusCode();
+		Long retryAt = getRetryAt(response.getFirstHeader("Retry-After"), now);
+		String remaining = getHeaderValue(response, "RateLimit-Remaining");
+		String reset = getHeaderValue(response, "RateLimit-Reset");
+		boolean windowKnown = StringUtils.isNumeric(remaining) && StringUtils.isNumeric(reset);
+
+		synchronized (this) {
+			if (windowKnown) {
+				// window measured by the server clock, local clock skew does not matter
+				String date = getHeaderValue(response, "Date");
+				Date serverDate = date == null ? null : DateUtils.parseDate(date);
+				long serverNow = serverDate == null ? now : serverDate.getTime();
+				long window = Math.max(TimeUnit.SECONDS.toMillis(1),
+						TimeUnit.SECONDS.toMillis(Long.parseLong(reset)) - serverNow);
+				long left = Long.parseLong(remaining);
+				if (left <= 0) {
+					pause(now + window);
+				} else {
+					serverRate = left * HEADROOM / window;
+					serverRateExpires = now + window;
+				}
+			}
+			if (retryAt != null) {
+				pause(retryAt);
+			} else if (statusCode == HTTP_TOO_MANY_REQUESTS && !windowKnown) {
+				pause(now + DEFAULT_PAUSE);
+			}
+		}
+	}
+
+	private void pause(long until) {
+		if (until > pausedUntil) {
+			pausedUntil = until;
+			LOGGER.warn("Rate limit of GitLab reached, requests paused for {0} ms",
+					until - System.currentTimeMillis());
+		}
+	}
+
+	private double getRate(long now) {
+		if (serverRate > 0 && serverRateExpires < now) {
+			serverRate = 0;
+		}
+		if (configuredRate > 0 && serverRate > 0) {
+			return Math.min(configuredRate, serverRate);
+		}
+		return Math.max(configuredRate, serverRate);
+	}
+
+	// one second of requests may go at once
+	private static double burst(double rate) {
+		return Math.max(1, rate * TimeUnit.SECONDS.toMillis(1));
+	}
+
+	private static Long getRetryAt(Header header, long now) {
+		if (header == null || StringUtils.isBlank(header.getValue())) {
+			return null;
+		}
+		String value = header.getValue().trim();
+		if (StringUtils.isNumeric(value)) {
+			return now + TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+		}
+		Date date = DateUtils.parseDate(value);
+		return date == null ? null : date.getTime();
+	}
+
+	private static String getHeaderValue(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorIOException("Interrupted while waiting for the rate limit of GitLab", e);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * Which failures of a request are transient and how long to wait before the
+ * request is sent again, see
+ * {@link ObjectProcessing#execute(HttpUriRequest)}. GET, HEAD, PUT and DELETE
+ * are sent again after any transient failure (429, 502, 503, 504, connection
+ * reset, timeout). Other methods only when the request was surely not
+ * processed (429, 503, connection refused); after other transient failures
+ * the outcome is not known and {@link OutcomeUnknownException} is thrown,
+ * creates check whether the object exists before they are sent again.
+ * <p>
+ * The delay grows exponentially from retryInitialDelay up to retryMaxDelay,
+ * the upper half of it is random so that workers do not retry in lockstep.
+ */
+public class RetryPolicy {
+
+	/**
+	 * A request which is not idempotent failed after it may have been
+	 * processed by GitLab.
+	 */
+	public static class OutcomeUnknownException extends ConnectorIOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public OutcomeUnknownException(String message) {
+			super(message);
+		}
+
+		public OutcomeUnknownException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	private final int maxRetries;
+	private final long initialDelay;
+	private final long maxDelay;
+
+	public RetryPolicy(GitlabRestConfiguration configuration) {
+		this.maxRetries = configuration.getMaxRetries();
+		this.initialDelay = configuration.getRetryInitialDelay();
+		this.maxDelay = configuration.getRetryMaxDelay();
+	}
+
+	/**
+	 * @return sends of one request after the first one at most
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public static boolean isIdempotent(HttpUriRequest request) {
+		String method = request.getMethod();
+		return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method) || "DELETE".equals(method);
+	}
+
+	public static boolean isTransient(int statusCode) {
+		return statusCode == RequestRateLimiter.HTTP_TOO_MANY_REQUESTS || statusCode == 502 || statusCode == 503
+				|| statusCode == 504;
+	}
+
+	/**
+	 * @return true if the status says the request was not processed
+	 */
+	public static boolean isRejected(int statusCode) {
+		return statusCode == RequestRateLimiter.HTTP_TOO_MANY_REQUESTS || statusCode == 503;
+	}
+
+	/**
+	 * @return false for failures which do not go away by waiting: unknown
+	 *         host, TLS and protocol errors
+	 */
+	public static boolean isTransient(IOException e) {
+		return !(e instanceof UnknownHostException || e instanceof SSLException
+				|| e instanceof ClientProtocolException);
+	}
+
+	/**
+	 * @return true if the request did not leave the connector
+	 */
+	public static boolean isNotSent(IOException e) {
+		return e instanceof ConnectException || e instanceof ConnectTimeoutException;
+	}
+
+	/**
+	 * Waits before the retry.
+	 *
+	 * @param retry
+	 *            1 for the first retry
+	 */
+	public void backoff(int retry) {
+		long delay = Math.min(maxDelay, initialDelay << Math.min(retry - 1, 30));
+		long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		try {
+			Thread.sleep(jittered);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorIOException("Interrupted while waiting to retry a request", e);
+		}
+	}
+}
@@ -15,18 +15,14 @@
  */
 package com.evolveum.polygon.connector.gitlab.rest;
 
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
 import org.identityconnectors.framework.common.objects.filter.Filter;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.net.URI;
@@ -162,57 +158,14 @@ public class ServiceAccountProcessing extends ObjectProcessing {
 
 
 
-	private Map<String, Integer> getSSHKeysAsMap(int userUid) {
-
-		URIBuilder uriBuilder = getURIBuilder();
-		StringBuilder path = new StringBuilder();
-		path.append(USERS).append("/").append(userUid).append(KEYS);
-
-		JSONArray objectsSSHKeys = new JSONArray();
-		JSONArray partOfsSSHKeys = new JSONArray();
-		int ii = 1;
-		uriBuilder.setPath(path.toString());
-
-		do {
-			uriBuilder.clearParameters();
-			uriBuilder.addParameter(PAGE, String.valueOf(ii));
-			uriBuilder.addParameter(PER_PAGE, "100");
-			HttpRequestBase requestSSHKey;
-			try {
-				requestSSHKey = new HttpGet(uriBuilder.build());
-			} catch (URISyntaxException e) {
-				StringBuilder sb = new StringBuilder();
-				sb.append("It was not possible create URI from UriBuilder; ").append(e.getLocalizedMessage());
-				throw new ConnectorException(sb.toString(), e);
-			}
-			partOfsSSHKeys = callRequestForJSONArray(requestSSHKey, true);
-			Iterator<Object> iterator = partOfsSSHKeys.iterator();
-			while (iterator.hasNext()) {
-				Object sshKey = iterator.next();
-				objectsSSHKeys.put(sshKey);
-			}
-			ii++;
-		} while (partOfsSSHKeys.length() == 100);
-
-		Map<String, Integer> sshKeys = new HashMap<String, Integer>();
-		for (int i = 0; i < objectsSSHKeys.length(); i++) {
-			JSONObject jsonObjectMember = objectsSSHKeys.getJSONObject(i);
-			String sshKey = ((String) jsonObjectMember.get("key"));
-			String unescapesshKey = StringEscapeUtils.unescapeXml(sshKey);
-			sshKeys.put(unescapesshKey, ((Integer) jsonObjectMember.get(UID)));
-		}
-		return sshKeys;
-	}
-
 	public void executeQueryForServiceAccount(Filter query,
 											  ResultsHandler handler,
 											  OperationOptions options) {
 
-		Boolean useDefaultEndpoint = false;
-		Set<Integer> allowedGroupIds = lookupAllowedGroupIds(options);
-		if (allowedGroupIds.isEmpty()) {
+		Set<Integer> allowedGroupIds = configuration.getManagedGroupScope().getGroupIds(this);
+		final boolean useDefaultEndpoint = allowedGroupIds.isEmpty();
+		if (useDefaultEndpoint) {
 			LOGGER.info("No groups configured or none found in GitLab.");
-			useDefaultEndpoint = true;
 		}
 		// 1) EqualsFilter on Uid: GET /users/{id}
 		if (query instanceof EqualsFilter
@@ -248,11 +201,7 @@ public class ServiceAccountProcessing extends ObjectProcessing {
 			String username = vals.get(0).toString();
 			Map<String,String> params = new HashMap<>();
 			params.put("username", username);
-			JSONArray list = (JSONArray) executeGetRequest(USERS, params, options, true);
-
-			for (Object o : list) {
-				JSONObject svc = (JSONObject) o;
-
+			executeGetRequest(USERS, params, options, svc -> {
 				boolean hasGroup = svc.has("provisioned_by_group_id")
 						&& !svc.isNull("provisioned_by_group_id");
 				Integer groupId = null;
@@ -262,25 +211,27 @@ public class ServiceAccountProcessing extends ObjectProcessing {
 
 				if ( useDefaultEndpoint
 						|| (hasGroup && allowedGroupIds.contains(groupId)) ) {
-					processingObjectFromGET(svc, handler);
+					return processingObjectFromGET(svc, handler);
 				}
-			}
+				return true;
+			});
 
 			// 3) No filter: list all service accounts
 		} else if (query == null) {
 			if (useDefaultEndpoint){
-				JSONArray list = (JSONArray) executeGetRequest(SERVICE_ACCOUNTS, null, options, true);
-				processingObjectFromGET(list, handler);
+				executeGetRequest(SERVICE_ACCOUNTS, null, options, svc -> {
+					return processingObjectFromGET(svc, handler);
+				});
 			} else {
 				for (Integer groupId : allowedGroupIds) {
 					String path = GROUPS + "/" + groupId + SERVICE_ACCOUNTS;
-					JSONArray saList = (JSONArray) executeGetRequest(
-							path, null, options, true);
-					for (Object o : saList) {
-						JSONObject sa = (JSONObject) o;
+					boolean next = executeGetRequest(path, null, options, sa -> {
 						sa.put("provisioned_by_group_id", groupId);
+						return processingObjectFromGET(sa, handler);
+					});
+					if (!next) {
+						break;
 					}
-					processingObjectFromGET(saList, handler);
 				}
 			}
 		} else {
@@ -291,59 +242,13 @@ public class ServiceAccountProcessing extends ObjectProcessing {
 	}
 
 
-	private void processingObjectFromGET(JSONObject user, ResultsHandler handler) {
-		byte[] avaratPhoto = getAvatarPhoto(user, ATTR_AVATAR_URL, ATTR_AVATAR);
-		int userUidValue = getUIDIfExists(user, UID);
-		Set<String> SSHKeys = getSSHKeysAsMap(userUidValue).keySet();
-		/*List<String> identities = getAttributeForIdentities(user);*/
-		ConnectorObjectBuilder builder = convertUserJSONObjectToConnectorObject(user, SSHKeys, avaratPhoto, null);
+	private boolean processingObjectFromGET(JSONObject user, ResultsHandler handler) {
+		// service account schema has no avatar and SSH keys, they are not read
+		ConnectorObjectBuilder builder = convertUserJSONObjectToConnectorObject(user, null, null, null);
 		ConnectorObject connectorObject = builder.build();
 		LOGGER.info("convertUserToConnectorObject, user: {0}, \n\tconnectorObject: {1}", user.get(UID),
 				connectorObject.toString());
-		handler.handle(connectorObject);
-	}
-
-	private void processingObjectFromGET(JSONArray users, ResultsHandler handler) {
-		JSONObject user;
-		for (int i = 0; i < users.length(); i++) {
-			user = users.getJSONObject(i);
-			processingObjectFromGET(user, handler);
-		}
-	}
-
-	private Map<String, String> getGroupsForFilter(String groupsToManage) {
-		LOGGER.info("getGroupsForFilter Start");
-		Map<String, String> groupArr = new HashMap<String, String>();
-		if (groupsToManage == null || groupsToManage.isEmpty()) {
-			return null;
-		}
-		String[] values = groupsToManage.toLowerCase().split(",");
-		for (String value : values) {
-			groupArr.put(value, value);
-		}
-		LOGGER.info("getGroupsForFilter End");
-		return groupArr;
-	}
-
-	private Set<Integer> lookupAllowedGroupIds(OperationOptions options) {
-		// 1) split & normalize the names
-		Map<String,String> nameMap = getGroupsForFilter(configuration.getGroupsToManage());
-		if (nameMap == null || nameMap.isEmpty()) {
-			return Collections.emptySet();
-		}
-
-		JSONArray allGroups = (JSONArray) executeGetRequest(GROUPS, null, options, true);
-
-		Set<Integer> ids = new HashSet<>();
-		for (Object o : allGroups) {
-			JSONObject g = (JSONObject) o;
-			String gitlabName = ((String) g.get("name")).toLowerCase();
-			String gitlabPath = ((String) g.get("path")).toLowerCase();
-			if (nameMap.containsKey(gitlabName) || nameMap.containsKey(gitlabPath)) {
-				ids.add(((Number) g.get("id")).intValue());
-			}
-		}
-		return ids;
+		return handler.handle(connectorObject);
 	}
 
 	private void changeStateIfExists(Set<Attribute> attributes, Uid uid) {
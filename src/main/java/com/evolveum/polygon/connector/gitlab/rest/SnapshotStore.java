@@ -0,0 +1,276 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * Sync state of an object class in a memory-mapped file of fixed size records
+ * sorted by id: int id and int content hash. Opening maps the file without reading it,
+ * lookups are binary searches in the mapping, so the state of hundreds of
+ * thousands of objects costs next to nothing on the heap.
+ * <p>
+ * The {@link Writer} appends records in listing order to a temporary file
+ * with an incomplete header, compaction sorts them in place, removes
+ * duplicate ids, completes the header and moves the file to its name. A file
+ * left by a crash is either incomplete or not there at all.
+ */
+public class SnapshotStore {
+
+	private static final Log LOGGER = Log.getLog(SnapshotStore.class);
+
+	private static final int MAGIC = 0x474c534e;
+	// magic, record size, record count (-1 until compacted)
+	private static final int HEADER_SIZE = 16;
+	// files of another record size are not opened, the next cycle returns all objects
+	private static final int RECORD_SIZE = 8;
+	private static final int INCOMPLETE = -1;
+
+	private final ByteBuffer records;
+	private final int size;
+
+	private SnapshotStore(ByteBuffer records, int size) {
+		this.records = records;
+		this.size = size;
+	}
+
+	/**
+	 * @return null if the file does not exist or is not complete
+	 */
+	public static SnapshotStore open(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+		// the mapping stays valid after the channel is closed
+		try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+			long length = channel.size();
+			if (length < HEADER_SIZE) {
+				LOGGER.warn("Snapshot {0} is not complete", file);
+				return null;
+			}
+			MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			long count = mapping.getLong(8);
+			if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != RECORD_SIZE || count == INCOMPLETE
+					|| HEADER_SIZE + count * RECORD_SIZE != length) {
+				LOGGER.warn("Snapshot {0} is not complete", file);
+				return null;
+			}
+			return new SnapshotStore(mapping, (int) count);
+		} catch (IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to open snapshot ").append(file).append("; ")
+					.append(e.getLocalizedMessage());
+			throw new ConnectorIOException(sb.toString(), e);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getId(int index) {
+		return records.getInt(HEADER_SIZE + index * RECORD_SIZE);
+	}
+
+	public int getHash(int index) {
+		return records.getInt(HEADER_SIZE + index * RECORD_SIZE + 4);
+	}
+
+	/**
+	 * @return index of the record with the id, -1 if there is none
+	 */
+	public int indexOf(int id) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleId = getId(middle);
+			if (middleId < id) {
+				low = middle + 1;
+			} else if (middleId > id) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Appends records of a new snapshot, safe for concurrent enrichment
+	 * workers.
+	 */
+	public static class Writer implements Closeable {
+
+		private final File tmp;
+		private final FileChannel channel;
+		private final ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+		private long count;
+
+		public Writer(File tmp) {
+			this.tmp = tmp;
+			try {
+				channel = new RandomAccessFile(tmp, "rw").getChannel();
+				channel.truncate(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(RECORD_SIZE).putLong(INCOMPLETE).flip();
+				write(header, 0);
+			} catch (IOException e) {
+				throw writeFailed(e);
+			}
+		}
+
+		public synchronized void append(int id, int hash) {
+			if (batch.remaining() < RECORD_SIZE) {
+				flush();
+			}
+			batch.putInt(id).putInt(hash);
+			count++;
+		}
+
+		/**
+		 * Sorts and deduplicates the records and moves the file to the target.
+		 *
+		 * @return the compacted snapshot
+		 */
+		public synchronized SnapshotStore commit(File target) {
+			flush();
+			try {
+				MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+						HEADER_SIZE + count * RECORD_SIZE);
+				sort(mapping, (int) count);
+				int unique = removeDuplicates(mapping, (int) count);
+				mapping.putLong(8, unique);
+				mapping.force();
+				channel.truncate(HEADER_SIZE + (long) unique * RECORD_SIZE);
+				channel.force(true);
+				channel.close();
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw writeFailed(e);
+			}
+			return open(target);
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!channel.isOpen()) {
+				return;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.ok("Snapshot {0} not closed: {1}", tmp, e.getLocalizedMessage());
+			}
+			if (!tmp.delete()) {
+				LOGGER.ok("Incomplete snapshot {0} not deleted", tmp);
+			}
+		}
+
+		private void flush() {
+			batch.flip();
+			try {
+				write(batch, channel.size());
+			} catch (IOException e) {
+				throw writeFailed(e);
+			}
+			batch.clear();
+		}
+
+		private void write(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+
+		private ConnectorIOException writeFailed(IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to write snapshot ").append(tmp).append("; ")
+					.append(e.getLocalizedMessage());
+			return new ConnectorIOException(sb.toString(), e);
+		}
+	}
+
+	// heapsort in the mapping, no copy of the records on the heap
+	private static void sort(ByteBuffer mapping, int count) {
+		for (int i = count / 2 - 1; i >= 0; i--) {
+			siftDown(mapping, i, count);
+		}
+		for (int end = count - 1; end > 0; end--) {
+			swap(mapping, 0, end);
+			siftDown(mapping, 0, end);
+		}
+	}
+
+	private static void siftDown(ByteBuffer mapping, int root, int count) {
+		while (2 * root + 1 < count) {
+			int child = 2 * root + 1;
+			if (child + 1 < count && id(mapping, child + 1) > id(mapping, child)) {
+				child++;
+			}
+			if (id(mapping, root) >= id(mapping, child)) {
+				return;
+			}
+			swap(mapping, root, child);
+			root = child;
+		}
+	}
+
+	private static int removeDuplicates(ByteBuffer mapping, int count) {
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique > 0 && id(mapping, unique - 1) == id(mapping, i)) {
+				// the same object on two pages of the listing
+				continue;
+			}
+			if (unique != i) {
+				copy(mapping, i, unique);
+			}
+			unique++;
+		}
+		return unique;
+	}
+
+	private static int id(ByteBuffer mapping, int index) {
+		return mapping.getInt(HEADER_SIZE + index * RECORD_SIZE);
+	}
+
+	private static void swap(ByteBuffer mapping, int i, int j) {
+		int a = HEADER_SIZE + i * RECORD_SIZE;
+		int b = HEADER_SIZE + j * RECORD_SIZE;
+		long record = mapping.getLong(a);
+		mapping.putLong(a, mapping.getLong(b));
+		mapping.putLong(b, record);
+	}
+
+	private static void copy(ByteBuffer mapping, int from, int to) {
+		int a = HEADER_SIZE + from * RECORD_SIZE;
+		int b = HEADER_SIZE + to * RECORD_SIZE;
+		mapping.putLong(b, mapping.getLong(a));
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.json.JSONObject;
+
+/**
+ * One sync cycle of the snapshot diff: the cheap listing of an object class is
+ * compared with the snapshot of the previous cycle, a content hash of the
+ * listing payload by id. Only new and changed objects are enriched and
+ * returned, ids missing in the listing are deleted.
+ * <p>
+ * Snapshots are {@link SnapshotStore} files kept in syncSnapshotDirectory,
+ * the token holds only the server time and the generation of the file. The
+ * snapshot of the token the cycle started from is kept until the next cycle,
+ * a cycle repeated from the same token diffs against the same snapshot.
+ */
+public class SnapshotSync implements Closeable {
+
+	private static final Log LOGGER = Log.getLog(SnapshotSync.class);
+
+	private static final String SEPARATOR = ";";
+	private static final String GENERATION_PREFIX = "@";
+	private static final String FILE_SUFFIX = ".snapshot";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final ObjectClass objectClass;
+	private final File directory;
+	private final SyncToken deltaToken;
+	private final String previousTime;
+	private final long previousGeneration;
+	private final long generation;
+	private final SnapshotStore previous;
+	// appended by the enrichment workers
+	private final SnapshotStore.Writer writer;
+	private final Map<Integer, SyncDeltaType> changes = new ConcurrentHashMap<Integer, SyncDeltaType>();
+	private SnapshotStore current;
+
+	/**
+	 * @param directory
+	 *            syncSnapshotDirectory
+	 */
+	public SnapshotSync(ObjectClass objectClass, String directory, SyncToken token) {
+		this.objectClass = objectClass;
+		this.directory = new File(directory);
+		this.deltaToken = token == null ? new SyncToken(ObjectProcessing.SYNC_FROM_START) : token;
+
+		String value = String.valueOf(deltaToken.getValue());
+		int separator = value.indexOf(SEPARATOR);
+		if (separator >= 0 && value.startsWith(GENERATION_PREFIX, separator + 1)) {
+			previousTime = value.substring(0, separator);
+			previousGeneration = parseGeneration(value.substring(separator + 1 + GENERATION_PREFIX.length()));
+			previous = open(previousGeneration);
+		} else {
+			// from start, or a token of another sync mode
+			if (!ObjectProcessing.SYNC_FROM_START.equals(value)) {
+				LOGGER.warn("Sync token {0} of {1} has no snapshot, all objects are returned", value, objectClass);
+			}
+			previousTime = null;
+			previousGeneration = 0;
+			previous = null;
+		}
+		// unique even if a cycle is repeated from the same token
+		generation = Math.max(previousGeneration + 1, System.currentTimeMillis());
+		writer = new SnapshotStore.Writer(tmpFile(generation));
+		LOGGER.info("Sync of {0} from snapshot with {1} objects", objectClass,
+				previous == null ? "no" : previous.size());
+	}
+
+	public SyncToken getDeltaToken() {
+		return deltaToken;
+	}
+
+	public boolean hasPrevious() {
+		return previous != null;
+	}
+
+	/**
+	 * @return server time of the previous cycle in ISO 8601 format
+	 */
+	public String getPreviousTime() {
+		return previousTime;
+	}
+
+	/**
+	 * Records the listing object in the current snapshot.
+	 *
+	 * @return CREATE or UPDATE, CREATE_OR_UPDATE without previous snapshot,
+	 *         null if the object did not change
+	 */
+	public SyncDeltaType diff(JSONObject object) {
+		int id = object.getInt(ObjectProcessing.UID);
+		int hash = ObjectProcessing.contentHash(object);
+		writer.append(id, hash);
+		SyncDeltaType change;
+		if (previous == null) {
+			change = SyncDeltaType.CREATE_OR_UPDATE;
+		} else {
+			int index = previous.indexOf(id);
+			if (index >= 0 && previous.getHash(index) == hash) {
+				return null;
+			}
+			change = index < 0 ? SyncDeltaType.CREATE : SyncDeltaType.UPDATE;
+		}
+		changes.put(id, change);
+		return change;
+	}
+
+	/**
+	 * @return delta type of an object returned by this cycle, null if it was
+	 *         not returned
+	 */
+	public SyncDeltaType getChange(int id) {
+		return changes.get(id);
+	}
+
+	/**
+	 * @return true if the object is in the current listing, only after the
+	 *         whole listing was read
+	 */
+	public boolean exists(int id) {
+		return current().indexOf(id) >= 0;
+	}
+
+	/**
+	 * Ids of the previous snapshot missing in the current listing, only after
+	 * the whole listing was read.
+	 */
+	public List<Integer> getDeletedIds() {
+		List<Integer> deleted = new ArrayList<Integer>();
+		if (previous == null) {
+			return deleted;
+		}
+		SnapshotStore current = current();
+		// both are sorted by id
+		int j = 0;
+		for (int i = 0; i < previous.size(); i++) {
+			int id = previous.getId(i);
+			while (j < current.size() && current.getId(j) < id) {
+				j++;
+			}
+			if (j >= current.size() || current.getId(j) != id) {
+				deleted.add(id);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Keeps the current snapshot and removes the snapshots other than the one
+	 * this cycle started from.
+	 *
+	 * @return token of the current snapshot
+	 */
+	public SyncToken finish(String serverTime) {
+		current();
+		removeOthers();
+		return new SyncToken(serverTime + SEPARATOR + GENERATION_PREFIX + generation);
+	}
+
+	/**
+	 * Removes the incomplete snapshot of an interrupted cycle.
+	 */
+	@Override
+	public void close() {
+		writer.close();
+	}
+
+	private synchronized SnapshotStore current() {
+		if (current == null) {
+			current = writer.commit(file(generation));
+			LOGGER.info("Snapshot of {0} with {1} objects written", objectClass, current.size());
+		}
+		return current;
+	}
+
+	private SnapshotStore open(long generation) {
+		SnapshotStore store = SnapshotStore.open(file(generation));
+		if (store == null) {
+			LOGGER.warn("Snapshot {0} does not exist, all objects of {1} are returned", file(generation), objectClass);
+		}
+		return store;
+	}
+
+	private void removeOthers() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		String prefix = prefix() + "-";
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(prefix) || !(name.endsWith(FILE_SUFFIX) || name.endsWith(TMP_SUFFIX))) {
+				continue;
+			}
+			try {
+				long fileGeneration = Long.parseLong(name.substring(prefix.length(), name.indexOf('.')));
+				if (fileGeneration != previousGeneration && fileGeneration != generation && !file.delete()) {
+					LOGGER.ok("Old snapshot {0} not deleted", file);
+				}
+			} catch (NumberFormatException e) {
+				// not a snapshot of this object class
+			}
+		}
+	}
+
+	private File file(long generation) {
+		return new File(directory, prefix() + "-" + generation + FILE_SUFFIX);
+	}
+
+	private File tmpFile(long generation) {
+		directory.mkdirs();
+		return new File(directory, prefix() + "-" + generation + FILE_SUFFIX + TMP_SUFFIX);
+	}
+
+	private String prefix() {
+		return objectClass.getObjectClassValue().replaceAll("[^A-Za-z0-9]", "");
+	}
+
+	private long parseGeneration(String generation) {
+		try {
+			return Long.parseLong(generation);
+		} catch (NumberFormatException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Sync token is not valid: ").append(deltaToken.getValue());
+			throw new InvalidAttributeValueException(sb.toString(), e);
+		}
+	}
+}
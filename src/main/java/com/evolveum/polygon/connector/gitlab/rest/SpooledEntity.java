@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Received body of a response, kept in memory up to a number of bytes and
+ * spooled to a temporary file beyond it. The body is kept as it came over the
+ * wire, a compressed body stays compressed and is decompressed only when it is
+ * read by {@link #decoded()}.
+ * <p>
+ * The temporary file is deleted by {@link #close()}.
+ */
+public class SpooledEntity extends AbstractHttpEntity implements Closeable {
+
+	private static final Log LOGGER = Log.getLog(SpooledEntity.class);
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final byte[] memory;
+	private final File file;
+	private final long length;
+
+	private SpooledEntity(HttpEntity entity, byte[] memory, File file, long length) {
+		this.memory = memory;
+		this.file = file;
+		this.length = length;
+		setContentType(entity.getContentType());
+		setContentEncoding(entity.getContentEncoding());
+	}
+
+	/**
+	 * Reads the entity to its end, the connection can be released afterwards.
+	 *
+	 * @param memoryLimit
+	 *            bytes held in memory at most, a longer body is spooled to a
+	 *            temporary file
+	 */
+	public static SpooledEntity receive(HttpEntity entity, long memoryLimit) throws IOException {
+		ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = entity.getContent()) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (memory.size() + read > memoryLimit) {
+					return spool(entity, memory, buffer, read, in);
+				}
+				memory.write(buffer, 0, read);
+			}
+		}
+		return new SpooledEntity(entity, memory.toByteArray(), null, memory.size());
+	}
+
+	private static SpooledEntity spool(HttpEntity entity, ByteArrayOutputStream memory, byte[] buffer, int read,
+			InputStream in) throws IOException {
+		File file = File.createTempFile("gitlab-page", ".tmp");
+		long length = memory.size();
+		try (OutputStream out = new FileOutputStream(file)) {
+			memory.writeTo(out);
+			do {
+				out.write(buffer, 0, read);
+				length += read;
+			} while ((read = in.read(buffer)) != -1);
+		} catch (IOException | RuntimeException e) {
+			delete(file);
+			throw e;
+		}
+		LOGGER.ok("Body of {0} bytes spooled to {1}", length, file);
+		return new SpooledEntity(entity, null, file, length);
+	}
+
+	/**
+	 * @return the entity decompressing a gzip or deflate body as it is read
+	 */
+	public HttpEntity decoded() {
+		String encoding = getContentEncoding() == null ? null : getContentEncoding().getValue();
+		if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+			return new GzipDecompressingEntity(this);
+		}
+		if ("deflate".equalsIgnoreCase(encoding)) {
+			return new DeflateDecompressingEntity(this);
+		}
+		return this;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return length;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return memory != null ? new ByteArrayInputStream(memory) : new FileInputStream(file);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		try (InputStream in = getContent()) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+		if (file != null) {
+			delete(file);
+		}
+	}
+
+	private static void delete(File file) {
+		if (!file.delete() && file.exists()) {
+			LOGGER.warn("Temporary file {0} could not be deleted", file);
+		}
+	}
+}
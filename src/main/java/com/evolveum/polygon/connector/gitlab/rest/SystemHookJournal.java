@@ -0,0 +1,472 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Durable journal of received system hook events. Every event is one JSON line
+ * with its sequence number, appended and forced to disk before the hook is
+ * acknowledged, so an event acknowledged to GitLab is never lost. Events
+ * redelivered by GitLab (same X-Gitlab-Event-UUID) are stored only once. A
+ * line left incomplete by a crash is cut off when the journal is opened.
+ * <p>
+ * Every sync acknowledges the sequence number of its token for its object
+ * class, as does the first latest token given to an object class; the
+ * acknowledgements are kept in a file next to the journal. Events
+ * acknowledged by all object classes which sync from the journal are removed
+ * once they take at least half of the file, by copying the rest to a new
+ * file. Sequence numbers do not change by that.
+ */
+public class SystemHookJournal implements Closeable {
+
+	private static final Log LOGGER = Log.getLog(SystemHookJournal.class);
+
+	// number of recent event UUIDs remembered for deduplication
+	private static final int DEDUPLICATION_WINDOW = 10000;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	// acknowledged events are not removed before they take this many bytes
+	private static final long DEFAULT_COMPACTION_SIZE = 1024 * 1024;
+
+	private static final String ACKNOWLEDGEMENTS_SUFFIX = ".ack";
+	// sequence number before the first event, kept for an empty journal
+	private static final String BASE = "base";
+	private static final String ACKNOWLEDGED_PREFIX = "acknowledged.";
+
+	private static final String SEQ = "seq";
+	private static final String UUID = "uuid";
+	private static final String TIME = "time";
+	private static final String PAYLOAD = "payload";
+
+	public static class Entry {
+
+		private final long sequence;
+		private final long time;
+		private final JSONObject payload;
+
+		Entry(long sequence, long time, JSONObject payload) {
+			this.sequence = sequence;
+			this.time = time;
+			this.payload = payload;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return time of the event in milliseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public String getEventName() {
+			return payload.optString("event_name", null);
+		}
+
+		public JSONObject getPayload() {
+			return payload;
+		}
+	}
+
+	private interface LineHandler {
+
+		/**
+		 * @return false to stop reading
+		 */
+		boolean handle(String line, long start);
+	}
+
+	private final File file;
+	private final File acknowledgementsFile;
+	private final long compactionSize;
+	private FileChannel channel;
+	// offsets.get(n) is the position of the entry with sequence firstSequence + n
+	private final List<Long> offsets = new ArrayList<Long>();
+	private long firstSequence = 1;
+	// last sequence number acknowledged by the sync of every object class
+	private final Map<String, Long> acknowledged = new HashMap<String, Long>();
+	private final Set<String> recentUuids = new LinkedHashSet<String>();
+
+	public SystemHookJournal(File file) {
+		this(file, DEFAULT_COMPACTION_SIZE);
+	}
+
+	SystemHookJournal(File file, long compactionSize) {
+		this.file = file;
+		this.acknowledgementsFile = new File(file.getPath() + ACKNOWLEDGEMENTS_SUFFIX);
+		this.compactionSize = compactionSize;
+		try {
+			File directory = file.getAbsoluteFile().getParentFile();
+			if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Directory " + directory + " could not be created");
+			}
+			loadAcknowledgements();
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			load();
+		} catch (IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to open system hook journal ").append(file).append("; ")
+					.append(e.getLocalizedMessage());
+			throw new ConnectorIOException(sb.toString(), e);
+		}
+		LOGGER.info("System hook journal {0} opened with {1} events", file, offsets.size());
+	}
+
+	/**
+	 * Appends the event and forces it to disk.
+	 *
+	 * @return false if an event with the same UUID is already in the journal
+	 */
+	public synchronized boolean append(String uuid, JSONObject payload) {
+		if (uuid != null && recentUuids.contains(uuid)) {
+			LOGGER.ok("Duplicate system hook event {0} ignored", uuid);
+			return false;
+		}
+		long sequence = getLastSequence() + 1;
+		JSONObject line = new JSONObject();
+		line.put(SEQ, sequence);
+		if (uuid != null) {
+			line.put(UUID, uuid);
+		}
+		line.put(TIME, eventTime(payload));
+		line.put(PAYLOAD, payload);
+		byte[] bytes = (line.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+		try {
+			long position = channel.size();
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+			channel.force(false);
+			offsets.add(position);
+		} catch (IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to write to system hook journal ").append(file).append("; ")
+					.append(e.getLocalizedMessage());
+			throw new ConnectorIOException(sb.toString(), e);
+		}
+		remember(uuid);
+		return true;
+	}
+
+	/**
+	 * @return sequence number of the last event, 0 for an empty journal
+	 */
+	public synchronized long getLastSequence() {
+		return firstSequence + offsets.size() - 1;
+	}
+
+	/**
+	 * All events with sequence number greater than afterSequence, see
+	 * {@link #read(long, int)}.
+	 */
+	public List<Entry> read(long afterSequence) {
+		return read(afterSequence, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Events with sequence number greater than afterSequence, at most
+	 * maxEvents of them in sequence order, ordered by event time, events of
+	 * the same time in the order they were received. The file is read in
+	 * blocks of fixed size.
+	 */
+	public synchronized List<Entry> read(long afterSequence, final int maxEvents) {
+		final List<Entry> entries = new ArrayList<Entry>();
+		if (afterSequence >= getLastSequence()) {
+			return entries;
+		}
+		if (afterSequence + 1 < firstSequence) {
+			LOGGER.warn("Events {0} - {1} of system hook journal {2} were removed, acknowledged by all syncs",
+					afterSequence + 1, firstSequence - 1, file);
+			if (offsets.isEmpty()) {
+				return entries;
+			}
+		}
+		try {
+			long start = offsets.get((int) Math.max(0, afterSequence + 1 - firstSequence));
+			scanLines(start, (line, lineStart) -> {
+				JSONObject json = new JSONObject(line);
+				entries.add(new Entry(json.getLong(SEQ), json.getLong(TIME), json.getJSONObject(PAYLOAD)));
+				return entries.size() < maxEvents;
+			});
+		} catch (IOException | JSONException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to read system hook journal ").append(file).append("; ")
+					.append(e.getLocalizedMessage());
+			throw new ConnectorIOException(sb.toString(), e);
+		}
+		// stable sort, events of the same time stay in sequence order
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				return Long.compare(e1.getTime(), e2.getTime());
+			}
+		});
+		return entries;
+	}
+
+	/**
+	 * Latest sync token of the object class. The sequence number is
+	 * acknowledged for an object class not acknowledged yet, so events after
+	 * it stay in the journal until its first sync, whatever other object
+	 * classes acknowledge meanwhile.
+	 */
+	public synchronized long getLatestSequence(String objectClass) {
+		long lastSequence = getLastSequence();
+		if (!acknowledged.containsKey(objectClass)) {
+			acknowledge(objectClass, lastSequence);
+		}
+		return lastSequence;
+	}
+
+	/**
+	 * Records that the sync of the object class processed all events up to
+	 * the sequence number (the sync token it was called with) and removes
+	 * events processed by all object classes when they take enough space.
+	 */
+	public synchronized void acknowledge(String objectClass, long sequence) {
+		Long previous = acknowledged.put(objectClass, sequence);
+		if (previous != null && previous == sequence) {
+			return;
+		}
+		try {
+			saveAcknowledgements();
+			compact();
+		} catch (IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to compact system hook journal ").append(file).append("; ")
+					.append(e.getLocalizedMessage());
+			throw new ConnectorIOException(sb.toString(), e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.warn(e, "System hook journal {0} was not closed", file);
+		}
+	}
+
+	private void load() throws IOException {
+		long end = scanLines(0, (line, lineStart) -> {
+			loadLine(line, lineStart);
+			return true;
+		});
+		if (end < channel.size()) {
+			LOGGER.warn("Incomplete last event of system hook journal {0} removed", file);
+			channel.truncate(end);
+		}
+	}
+
+	private void loadLine(String line, long lineStart) {
+		JSONObject json = new JSONObject(line);
+		if (offsets.isEmpty()) {
+			// the first event left by compaction
+			firstSequence = json.getLong(SEQ);
+		}
+		offsets.add(lineStart);
+		remember(json.optString(UUID, null));
+	}
+
+	/**
+	 * Reads complete lines from the position on.
+	 *
+	 * @return position after the last complete line read
+	 */
+	private long scanLines(long from, LineHandler handler) throws IOException {
+		long size = channel.size();
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		long position = from;
+		long lineStart = from;
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				byte b = buffer.get(i);
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				boolean proceed = handler.handle(new String(line.toByteArray(), StandardCharsets.UTF_8), lineStart);
+				line.reset();
+				lineStart = position + i + 1;
+				if (!proceed) {
+					return lineStart;
+				}
+			}
+			position += read;
+		}
+		return lineStart;
+	}
+
+	/**
+	 * Removes the events acknowledged by all object classes if they take at
+	 * least compactionSize bytes and half of the file.
+	 */
+	private void compact() throws IOException {
+		if (acknowledged.isEmpty()) {
+			return;
+		}
+		long upTo = Math.min(Collections.min(acknowledged.values()), getLastSequence());
+		int removed = (int) (upTo - firstSequence + 1);
+		if (removed <= 0) {
+			return;
+		}
+		long size = channel.size();
+		long cut = removed < offsets.size() ? offsets.get(removed) : size;
+		if (cut < compactionSize || cut * 2 < size) {
+			return;
+		}
+		// the base goes first, an empty journal must not start its sequence numbers again
+		long newFirstSequence = firstSequence + removed;
+		saveAcknowledgements(newFirstSequence - 1);
+		File compacted = new File(file.getPath() + ".tmp");
+		try (FileChannel target = new RandomAccessFile(compacted, "rw").getChannel()) {
+			target.truncate(0);
+			long position = cut;
+			while (position < size) {
+				position += channel.transferTo(position, size - position, target);
+			}
+			target.force(true);
+		}
+		channel.close();
+		Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+
+		List<Long> remaining = new ArrayList<Long>(offsets.subList(removed, offsets.size()));
+		offsets.clear();
+		for (Long offset : remaining) {
+			offsets.add(offset - cut);
+		}
+		firstSequence = newFirstSequence;
+		LOGGER.info("System hook journal {0} compacted, {1} acknowledged events removed, {2} events left", file,
+				removed, offsets.size());
+	}
+
+	private void loadAcknowledgements() throws IOException {
+		if (!acknowledgementsFile.isFile()) {
+			return;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(acknowledgementsFile)) {
+			properties.load(in);
+		}
+		// overridden by the first event of the journal, if any
+		firstSequence = Long.parseLong(properties.getProperty(BASE, "0")) + 1;
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith(ACKNOWLEDGED_PREFIX)) {
+				acknowledged.put(name.substring(ACKNOWLEDGED_PREFIX.length()),
+						Long.parseLong(properties.getProperty(name)));
+			}
+		}
+	}
+
+	private void saveAcknowledgements() throws IOException {
+		saveAcknowledgements(firstSequence - 1);
+	}
+
+	private void saveAcknowledgements(long base) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(BASE, String.valueOf(base));
+		for (Map.Entry<String, Long> entry : acknowledged.entrySet()) {
+			properties.setProperty(ACKNOWLEDGED_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+		}
+		File temporary = new File(acknowledgementsFile.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temporary)) {
+			properties.store(out, "System hook journal acknowledgements");
+			out.getFD().sync();
+		}
+		Files.move(temporary.toPath(), acknowledgementsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void remember(String uuid) {
+		if (uuid == null) {
+			return;
+		}
+		recentUuids.add(uuid);
+		if (recentUuids.size() > DEDUPLICATION_WINDOW) {
+			Iterator<String> eldest = recentUuids.iterator();
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Time of the change from updated_at (created_at) of the payload, time of
+	 * receiving when the payload has none.
+	 */
+	private static long eventTime(JSONObject payload) {
+		String[] keys = { "updated_at", "created_at" };
+		for (String key : keys) {
+			String value = payload.optString(key, null);
+			if (value == null) {
+				continue;
+			}
+			for (String pattern : new String[] { "yyyy-MM-dd'T'HH:mm:ssX", "yyyy-MM-dd'T'HH:mm:ss.SSSX",
+					"yyyy-MM-dd HH:mm:ss z" }) {
+				SimpleDateFormat format = new SimpleDateFormat(pattern);
+				format.setTimeZone(TimeZone.getTimeZone("UTC"));
+				try {
+					return format.parse(value).getTime();
+				} catch (ParseException e) {
+					// next pattern
+				}
+			}
+		}
+		return System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP endpoint for GitLab system hooks. Accepts POST requests with
+ * the configured secret token in the X-Gitlab-Token header and appends the
+ * payload to the {@link SystemHookJournal}. The hook is acknowledged only
+ * after the event is on disk, GitLab retries hooks that were not.
+ */
+public class SystemHookListener implements Closeable {
+
+	private static final Log LOGGER = Log.getLog(SystemHookListener.class);
+
+	private static final String TOKEN_HEADER = "X-Gitlab-Token";
+	private static final String UUID_HEADER = "X-Gitlab-Event-UUID";
+
+	private final HttpServer server;
+	private final SystemHookJournal journal;
+	private final String secret;
+
+	/**
+	 * @param port
+	 *            port to listen on, 0 for any free port
+	 * @param secret
+	 *            expected value of X-Gitlab-Token, required: a forged
+	 *            *_destroy event would delete the object in the resource
+	 */
+	public SystemHookListener(int port, String secret, SystemHookJournal journal) {
+		if (secret == null || secret.isEmpty()) {
+			throw new IllegalArgumentException("System hook listener needs a secret token");
+		}
+		this.journal = journal;
+		this.secret = secret;
+		try {
+			server = HttpServer.create(new InetSocketAddress(port), 0);
+		} catch (IOException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("It was not possible to listen for system hooks on port ").append(port).append("; ")
+					.append(e.getLocalizedMessage());
+			throw new ConnectorIOException(sb.toString(), e);
+		}
+		server.createContext("/", this::handle);
+		server.start();
+		LOGGER.info("Listening for system hooks on port {0}", getPort());
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		LOGGER.info("System hook listener on port {0} stopped", getPort());
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			if (!isSecret(exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+				LOGGER.warn("System hook from {0} with wrong token rejected", exchange.getRemoteAddress());
+				exchange.sendResponseHeaders(401, -1);
+				return;
+			}
+			JSONObject payload;
+			try {
+				payload = new JSONObject(readBody(exchange.getRequestBody()));
+			} catch (JSONException e) {
+				LOGGER.warn("System hook from {0} is not a JSON object: {1}", exchange.getRemoteAddress(),
+						e.getLocalizedMessage());
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+			try {
+				journal.append(exchange.getRequestHeaders().getFirst(UUID_HEADER), payload);
+			} catch (ConnectorIOException e) {
+				LOGGER.error(e, "System hook {0} could not be stored", payload.optString("event_name"));
+				exchange.sendResponseHeaders(500, -1);
+				return;
+			}
+			LOGGER.ok("System hook {0} received", payload.optString("event_name"));
+			exchange.sendResponseHeaders(200, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// constant time comparison, the secret is not to be guessed from timing
+	private boolean isSecret(String token) {
+		return token != null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+				token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			body.write(buffer, 0, read);
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.json.JSONObject;
+
+/**
+ * Sync from the system hook journal, used instead of reading the listings
+ * when the system hook listener is configured. The token is the sequence
+ * number of the last journal event returned. Events of the object class are
+ * ordered by event time, several events of one object make one delta: the
+ * object is read again, or reported deleted when its last event is a destroy.
+ * The journal is read in chunks of events, the deltas of a chunk carry the
+ * sequence number the chunk starts after.
+ */
+public class SystemHookProcessing extends ObjectProcessing {
+
+	private static final Log LOGGER = Log.getLog(SystemHookProcessing.class);
+
+	private static final String EVENT_NAME = "event_name";
+	// events read from the journal at once
+	private static final int EVENTS_PER_READ = 10000;
+
+	private static final Set<String> USER_EVENTS = new HashSet<String>(
+			Arrays.asList("user_create", "user_rename", "user_destroy", "key_create", "key_destroy"));
+	private static final Set<String> GROUP_EVENTS = new HashSet<String>(Arrays.asList("group_create", "group_rename",
+			"group_destroy", "user_add_to_group", "user_remove_from_group", "user_update_for_group"));
+	private static final Set<String> PROJECT_EVENTS = new HashSet<String>(Arrays.asList("project_create",
+			"project_rename", "project_transfer", "project_update", "project_destroy", "user_add_to_team",
+			"user_remove_from_team", "user_update_for_team"));
+
+	public SystemHookProcessing(GitlabRestConfiguration configuration, CloseableHttpClient httpclient) {
+		super(configuration, httpclient);
+	}
+
+	public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+		return new SyncToken(configuration.getHookJournal().getLatestSequence(objectClass.getObjectClassValue()));
+	}
+
+	public void sync(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+		SystemHookJournal journal = configuration.getHookJournal();
+		long lastSequence = toSequence(token == null ? new SyncToken(0L) : token);
+		// the caller stored the token, events up to it are processed
+		journal.acknowledge(objectClass.getObjectClassValue(), lastSequence);
+
+		List<SystemHookJournal.Entry> entries;
+		while (!(entries = journal.read(lastSequence, EVENTS_PER_READ)).isEmpty()) {
+			SyncToken deltaToken = new SyncToken(lastSequence);
+			// last event of every object, in order of the last events
+			Map<Attribute, SystemHookJournal.Entry> lastEvents = new LinkedHashMap<Attribute, SystemHookJournal.Entry>();
+			for (SystemHookJournal.Entry entry : entries) {
+				lastSequence = Math.max(lastSequence, entry.getSequence());
+				Attribute reference = getReference(objectClass, entry);
+				if (reference != null) {
+					lastEvents.remove(reference);
+					lastEvents.put(reference, entry);
+				}
+			}
+			LOGGER.info("sync of {0} from journal: {1} events, {2} objects changed", objectClass, entries.size(),
+					lastEvents.size());
+
+			for (Map.Entry<Attribute, SystemHookJournal.Entry> lastEvent : lastEvents.entrySet()) {
+				Attribute reference = lastEvent.getKey();
+				boolean destroyed = lastEvent.getValue().getEventName().endsWith("_destroy")
+						&& !lastEvent.getValue().getEventName().startsWith("key_");
+				if (!destroyed && !handleObject(objectClass, reference, deltaToken, handler, options)) {
+					return;
+				}
+				if (destroyed && reference instanceof Uid
+						&& !handleDeleteDelta(handler, deltaToken, objectClass, (Uid) reference)) {
+					return;
+				}
+			}
+		}
+		if (handler instanceof SyncTokenResultsHandler) {
+			((SyncTokenResultsHandler) handler).handleResult(new SyncToken(lastSequence));
+		}
+	}
+
+	/**
+	 * Reads the object again, an object not existing anymore is reported
+	 * deleted.
+	 *
+	 * @return false if the handler wants no more deltas
+	 */
+	private boolean handleObject(ObjectClass objectClass, Attribute reference, final SyncToken deltaToken,
+			final SyncResultsHandler handler, OperationOptions options) {
+		final boolean[] proceed = { true };
+		EqualsFilter filter = new EqualsFilter(reference);
+		try {
+			if (objectClass.is(ObjectClass.ACCOUNT_NAME)) {
+				new UserProcessing(this).executeQueryForUser(filter,
+						connectorObject -> proceed[0] = handleSyncDelta(handler, deltaToken, connectorObject), options);
+			} else if (objectClass.is(ObjectClass.GROUP_NAME)) {
+				new GroupProcessing(this).executeQueryForGroup(filter,
+						connectorObject -> proceed[0] = handleSyncDelta(handler, deltaToken, connectorObject), options);
+			} else {
+				new ProjectProcessing(this).executeQueryForProject(filter,
+						connectorObject -> proceed[0] = handleSyncDelta(handler, deltaToken, connectorObject), options);
+			}
+		} catch (UnknownUidException e) {
+			LOGGER.ok("{0} {1} from system hook does not exist anymore", objectClass, reference);
+			if (reference instanceof Uid) {
+				return handleDeleteDelta(handler, deltaToken, objectClass, (Uid) reference);
+			}
+		}
+		return proceed[0];
+	}
+
+	/**
+	 * @return Uid or Name of the object of the object class the event is
+	 *         about, null for events of other object classes
+	 */
+	private Attribute getReference(ObjectClass objectClass, SystemHookJournal.Entry entry) {
+		JSONObject payload = entry.getPayload();
+		String eventName = payload.optString(EVENT_NAME);
+		if (objectClass.is(ObjectClass.ACCOUNT_NAME) && USER_EVENTS.contains(eventName)) {
+			// key events name the user only by username
+			return eventName.startsWith("key_") ? nameReference(payload, "username") : uidReference(payload, "user_id");
+		} else if (objectClass.is(ObjectClass.GROUP_NAME) && GROUP_EVENTS.contains(eventName)) {
+			return uidReference(payload, "group_id");
+		} else if (objectClass.is(PROJECT_NAME) && PROJECT_EVENTS.contains(eventName)) {
+			return uidReference(payload, "project_id");
+		}
+		return null;
+	}
+
+	private Attribute uidReference(JSONObject payload, String key) {
+		return payload.has(key) && !payload.isNull(key) ? new Uid(String.valueOf(payload.get(key))) : null;
+	}
+
+	private Attribute nameReference(JSONObject payload, String key) {
+		return payload.has(key) && !payload.isNull(key) ? new Name(payload.getString(key)) : null;
+	}
+
+	private long toSequence(SyncToken token) {
+		Object value = token.getValue();
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		if (SYNC_FROM_START.equals(value)) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(String.valueOf(value));
+		} catch (NumberFormatException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Sync token ").append(value).append(" is not a system hook journal sequence number");
+			throw new InvalidAttributeValueException(sb.toString(), e);
+		}
+	}
+}
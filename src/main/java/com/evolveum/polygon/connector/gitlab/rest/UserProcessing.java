@@ -18,7 +18,9 @@ package com.evolveum.polygon.connector.gitlab.rest;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 /**
  * @author Lukas Skublik
  *
@@ -54,16 +56,23 @@ import org.identityconnectors.framework.common.objects.OperationalAttributeInfos
 import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
 import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
 import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import com.evolveum.polygon.connector.gitlab.rest.EnrichmentPlan.Enrichment;
+
 public class UserProcessing extends ObjectProcessing {
 
 	private static final String STATUS_ACTIVE = "active";
+	// separates updated_at and id of a user in the sync token
+	private static final String POSITION_SEPARATOR = "#";
 
 	// mandatory attributes
 	private static final String ATTR_MAIL = "email";
@@ -131,6 +140,12 @@ public class UserProcessing extends ObjectProcessing {
 		this.httpclient = httpclient;
 	}
 
+	public UserProcessing(ObjectProcessing operation) {
+		super(operation);
+		this.configuration = operation.configuration;
+		this.httpclient = operation.httpclient;
+	}
+
 	public void buildUserObjectClass(SchemaBuilder schemaBuilder) {
 		ObjectClassInfoBuilder userObjClassBuilder = new ObjectClassInfoBuilder();
 
@@ -248,7 +263,8 @@ public class UserProcessing extends ObjectProcessing {
 
 		AttributeInfoBuilder avatarBuilder = new AttributeInfoBuilder(ATTR_AVATAR);
 //		avatarBuilder.setType(byte[].class).setCreateable(true).setUpdateable(true).setReadable(true);
-		avatarBuilder.setType(byte[].class).setCreateable(false).setUpdateable(false).setReadable(true);
+		avatarBuilder.setType(byte[].class).setCreateable(false).setUpdateable(false).setReadable(true)
+				.setReturnedByDefault(false);
 		userObjClassBuilder.addAttributeInfo(avatarBuilder.build());
 
 		// multivalued: TRUE && createable: TRUE && updateable: TRUE && readable:TRUE
@@ -259,7 +275,7 @@ public class UserProcessing extends ObjectProcessing {
 
 		AttributeInfoBuilder sshKeysBuilder = new AttributeInfoBuilder(ATTR_SSH_KEYS);
 		sshKeysBuilder.setType(String.class).setMultiValued(true).setCreateable(true).setUpdateable(true)
-				.setReadable(true);
+				.setReadable(true).setReturnedByDefault(false);
 		userObjClassBuilder.addAttributeInfo(sshKeysBuilder.build());
 
 		// multivalued: TRUE && createable: TRUE && updateable: TRUE && readable: TRUE
@@ -356,7 +372,7 @@ public class UserProcessing extends ObjectProcessing {
 
 		putRequestedPassword(create, attributes, json);
 
-		Uid newUid = createPutOrPostRequest(uid, USERS, json, create);
+		Uid newUid = createPutOrPostRequest(uid, USERS, json, create, null, () -> findCreatedUser(json));
 
 		changeStateIfExists(attributes, newUid);
 
@@ -595,12 +611,144 @@ public class UserProcessing extends ObjectProcessing {
 		return sshKeys;
 	}
 
+	/**
+	 * Token of the newest user, a sync started with it returns users changed
+	 * from now on. With syncSnapshotDirectory snapshot of the current users.
+	 */
+	public SyncToken getLatestSyncTokenForUser() {
+		if (configuration.isSnapshotSyncEnabled()) {
+			return getLatestSnapshotToken(ObjectClass.ACCOUNT, USERS, getUserListingParameters());
+		}
+		Map<String, String> parameters = getSyncParameters();
+		parameters.put(PER_PAGE, "1");
+		JSONObject newest = readFirstObject(USERS, parameters);
+		if (newest == null || newest.isNull(ATTR_UPDATED_AT)) {
+			// no users, next sync reads them all
+			return new SyncToken(SYNC_FROM_START);
+		}
+		return new SyncToken(newest.getString(ATTR_UPDATED_AT) + POSITION_SEPARATOR + newest.getInt(UID));
+	}
+
+	/**
+	 * GitLab has no updated_after filter for users, the token is the position
+	 * (updated_at#id) of the newest user. The sync reads users ordered by
+	 * updated_at, newest first, and stops at the first user older than the
+	 * position; a created or changed user moves in front of it. Users with
+	 * the updated_at of the position are returned again, except the user of
+	 * the position, GitLab does not order them by id. A token which
+	 * is not a position (cursor of older versions) reads all users. Deleted
+	 * users are not detected, unless the users are synchronized by the
+	 * snapshot diff (syncSnapshotDirectory).
+	 */
+	public void syncUsers(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+		if (configuration.isSnapshotSyncEnabled()) {
+			String serverTime = readServerTime(USERS);
+			try (SnapshotSync snapshot = new SnapshotSync(ObjectClass.ACCOUNT, configuration.getSyncSnapshotDirectory(),
+					token)) {
+				final EnrichmentPlan plan = planEnrichment(options);
+				if (syncSnapshotChanges(snapshot, USERS, getUserListingParameters(), handler,
+						user -> convertUser(user, plan), plan.hasEnrichments())) {
+					finishSnapshotSync(snapshot, ObjectClass.ACCOUNT, handler, serverTime);
+				}
+			}
+			return;
+		}
+		// taken before reading, users changed while reading are returned again next time
+		SyncToken latestToken = getLatestSyncTokenForUser();
+
+		Map<String, String> parameters = getSyncParameters();
+		parameters.put(PER_PAGE, "100");
+		final SyncToken deltaToken = token == null ? new SyncToken(SYNC_FROM_START) : token;
+		final long[] position = toPosition(deltaToken);
+		LOGGER.info("syncUsers from token {0}, latest token {1}", deltaToken.getValue(), latestToken.getValue());
+
+		final EnrichmentPlan plan = planEnrichment(options);
+		// a sync interrupted in the middle starts again from the previous token
+		boolean finished = executeSearchRequest(USERS, parameters, null,
+				connectorObject -> handleSyncDelta(handler, deltaToken, connectorObject),
+				user -> isBehind(user, position) ? null : convertUser(user, plan), plan.hasEnrichments(),
+				user -> position == null || updatedAt(user) >= position[0]);
+		if (finished && handler instanceof SyncTokenResultsHandler) {
+			((SyncTokenResultsHandler) handler).handleResult(latestToken);
+		}
+	}
+
+	private Map<String, String> getUserListingParameters() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (!configuration.getOnlyHumanAccounts().equals("all")) {
+			parameters.put("humans", configuration.getOnlyHumanAccounts());
+		}
+		return getListingParameters(configuration.getUsersPagination(), UID, parameters, null);
+	}
+
+	// users ordered by updated_at, newest first; keyset pagination of /users supports order by id only
+	private Map<String, String> getSyncParameters() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (!configuration.getOnlyHumanAccounts().equals("all")) {
+			parameters.put("humans", configuration.getOnlyHumanAccounts());
+		}
+		parameters.put(ORDER_BY, ATTR_UPDATED_AT);
+		parameters.put(SORT, "desc");
+		return parameters;
+	}
+
+	/**
+	 * @return updated_at in milliseconds and id of the token, null to read
+	 *         all users
+	 */
+	static long[] toPosition(SyncToken token) {
+		String value = String.valueOf(token.getValue());
+		if (SYNC_FROM_START.equals(value)) {
+			return null;
+		}
+		int separator = value.lastIndexOf(POSITION_SEPARATOR);
+		try {
+			if (separator > 0) {
+				long updatedAt = OffsetDateTime.parse(value.substring(0, separator)).toInstant().toEpochMilli();
+				return new long[] { updatedAt, Long.parseLong(value.substring(separator + 1)) };
+			}
+		} catch (DateTimeParseException | NumberFormatException e) {
+			// handled below
+		}
+		LOGGER.warn("Sync token {0} is not a position of a user, all users are read", value);
+		return null;
+	}
+
+	/**
+	 * @return updated_at in milliseconds, 0 if unknown
+	 */
+	private static long updatedAt(JSONObject user) {
+		String updatedAt = user.optString(ATTR_UPDATED_AT, null);
+		if (updatedAt == null) {
+			return 0;
+		}
+		try {
+			return OffsetDateTime.parse(updatedAt).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return true if the user is older than the position or is the user of
+	 *         the position; other users of the same updated_at are not
+	 *         behind, their order among each other is not defined
+	 */
+	static boolean isBehind(JSONObject user, long[] position) {
+		if (position == null) {
+			return false;
+		}
+		long updatedAt = updatedAt(user);
+		return updatedAt < position[0] || (updatedAt == position[0] && user.getInt(UID) == position[1]);
+	}
+
 	public void executeQueryForUser(Filter query, ResultsHandler handler, OperationOptions options) {
 		Map<String,String> parameters = new HashMap<>();
 
 		if (!configuration.getOnlyHumanAccounts().equals("all")){
 			parameters.put("humans", configuration.getOnlyHumanAccounts());
 		}
+		final EnrichmentPlan plan = planEnrichment(options);
 
 
 		if (query instanceof EqualsFilter) {
@@ -614,7 +762,7 @@ public class UserProcessing extends ObjectProcessing {
 				StringBuilder sbPath = new StringBuilder();
 				sbPath.append(USERS).append("/").append(uid.getUidValue());
 				JSONObject user = (JSONObject) executeGetRequest(sbPath.toString(), null, options, false);
-				processingObjectFromGET(user, handler);
+				handler.handle(convertUser(user, plan));
 
 			} else if (((EqualsFilter) query).getAttribute() instanceof Name) {
 
@@ -624,8 +772,8 @@ public class UserProcessing extends ObjectProcessing {
 				}
 
 				parameters.put(ATTR_USERNAME, allValues.get(0).toString());
-				JSONArray users = (JSONArray) executeGetRequest(USERS, parameters, options, true);
-				processingObjectFromGET(users, handler);
+				executeSearchRequest(USERS, parameters, options, handler, user -> convertUser(user, plan),
+						plan.hasEnrichments());
 
 			} else if (((EqualsFilter) query).getAttribute().getName().equals(ATTR_IDENTITIES)) {
 
@@ -636,8 +784,8 @@ public class UserProcessing extends ObjectProcessing {
 
 				parameters.put(ATTR_PROVIDER, ((String) allValues.get(0)).split(":")[0].toString());
 				parameters.put(ATTR_EXTERN_UID, ((String) allValues.get(0)).split(":")[1].toString());
-				JSONArray users = (JSONArray) executeGetRequest(USERS, parameters, options, true);
-				processingObjectFromGET(users, handler);
+				executeSearchRequest(USERS, parameters, options, handler, user -> convertUser(user, plan),
+						plan.hasEnrichments());
 
 			} else if (((EqualsFilter) query).getAttribute().getName().equals(ATTR_EXTERNAL)) {
 
@@ -647,8 +795,8 @@ public class UserProcessing extends ObjectProcessing {
 				}
 
 				parameters.put(ATTR_EXTERNAL, allValues.get(0).toString());
-				JSONArray users = (JSONArray) executeGetRequest(USERS, parameters, options, true);
-				processingObjectFromGET(users, handler);
+				executeSearchRequest(USERS, parameters, options, handler, user -> convertUser(user, plan),
+						plan.hasEnrichments());
 			} else {
 				StringBuilder sb = new StringBuilder();
 				sb.append("Illegal search with attribute ").append(((EqualsFilter) query).getAttribute().getName())
@@ -668,8 +816,8 @@ public class UserProcessing extends ObjectProcessing {
 					invalidAttributeValue("__NAME__", query);
 				}
 				parameters.put(SEARCH, allValues.get(0).toString());
-				JSONArray users = (JSONArray) executeGetRequest(USERS, parameters, options, true);
-				processingObjectFromGET(users, handler);
+				executeSearchRequest(USERS, parameters, options, handler, user -> convertUser(user, plan),
+						plan.hasEnrichments());
 
 			} else {
 				StringBuilder sb = new StringBuilder();
@@ -679,8 +827,10 @@ public class UserProcessing extends ObjectProcessing {
 				throw new InvalidAttributeValueException(sb.toString());
 			}
 		} else if (query == null) {
-			JSONArray users = (JSONArray) executeGetRequest(USERS, parameters, options, true);
-			processingObjectFromGET(users, handler);
+			Map<String, String> listingParameters = getListingParameters(configuration.getUsersPagination(), UID,
+					parameters, options);
+			executeSearchRequest(USERS, listingParameters, options, handler, user -> convertUser(user, plan),
+					plan.hasEnrichments());
 		} else {
 			StringBuilder sb = new StringBuilder();
 			sb.append("Unexpected filter ").append(query.getClass());
@@ -689,28 +839,27 @@ public class UserProcessing extends ObjectProcessing {
 		}
 	}
 
-	private void processingObjectFromGET(JSONObject user, ResultsHandler handler) {
-		byte[] avaratPhoto = getAvatarPhoto(user, ATTR_AVATAR_URL, ATTR_AVATAR);
-		int userUidValue = getUIDIfExists(user, UID);
-		Set<String> SSHKeys = getSSHKeysAsMap(userUidValue).keySet();
+	@Override
+	protected EnrichmentPlan planEnrichment(OperationOptions options) {
+		return super.planEnrichment(options).add(Enrichment.SSH_KEYS, ATTR_SSH_KEYS);
+	}
+
+	private ConnectorObject convertUser(JSONObject user, EnrichmentPlan plan) {
+		byte[] avaratPhoto = null;
+		if (plan.contains(Enrichment.AVATAR)) {
+			avaratPhoto = getAvatarPhoto(user, ATTR_AVATAR_URL, ATTR_AVATAR);
+		}
+		Set<String> SSHKeys = null;
+		if (plan.contains(Enrichment.SSH_KEYS)) {
+			int userUidValue = getUIDIfExists(user, UID);
+			SSHKeys = getSSHKeysAsMap(userUidValue).keySet();
+		}
 		List<String> identities = getAttributeForIdentities(user);
 		ConnectorObjectBuilder builder = convertUserJSONObjectToConnectorObject(user, SSHKeys, avaratPhoto, identities);
 		ConnectorObject connectorObject = builder.build();
 		LOGGER.info("convertUserToConnectorObject, user: {0}, \n\tconnectorObject: {1}", user.get(UID),
 				connectorObject.toString());
-		handler.handle(connectorObject);
-	}
-
-	private void processingObjectFromGET(JSONArray users, ResultsHandler handler) {
-		JSONObject user;
-		for (int i = 0; i < users.length(); i++) {
-			user = users.getJSONObject(i);
-			processingObjectFromGET(user, handler);
-//			ConnectorObjectBuilder builder = convertUserJSONObjectToConnectorObject(user);
-//			ConnectorObject connectorObject = builder.build();
-//			LOGGER.info("convertUserToConnectorObject, user: {0}, \n\tconnectorObject: {1}", user.get(UID),connectorObject.toString());
-//			handler.handle(connectorObject);
-		}
+		return connectorObject;
 	}
 
 	public void updateDeltaMultiValues(Uid uid, Set<AttributeDelta> attributesDelta, OperationOptions options) {
@@ -786,10 +935,23 @@ public class UserProcessing extends ObjectProcessing {
 		return null;
 	}
 
+	/**
+	 * @return the user of the create request, null if it does not exist
+	 */
+	private JSONObject findCreatedUser(JSONObject json) {
+		if (!json.has(ATTR_USERNAME)) {
+			return null;
+		}
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put(ATTR_USERNAME, json.getString(ATTR_USERNAME));
+		JSONArray users = (JSONArray) executeGetRequest(USERS, parameters, null, true);
+		return users.length() == 0 ? null : users.getJSONObject(0);
+	}
+
 	public Map<Integer, Integer> getUserAccess(String sbPath, String type) {
 		LOGGER.info("getUserAccess Start");
 		// Get groups or project to manage is informed by user on connector configuration
-		Map<String, String> groupsToManage = getGroupsForFilter(this.configuration.getGroupsToManage());
+		ManagedGroupScope scope = configuration.getManagedGroupScope();
 		Map<Integer, Integer> output = new HashMap<Integer, Integer>();
 		JSONArray groupsOrProjects = new JSONArray();
 		JSONArray partOfGroupsOrProjects = new JSONArray();
@@ -803,10 +965,7 @@ public class UserProcessing extends ObjectProcessing {
 		Iterator<Object> iterator = partOfGroupsOrProjects.iterator();
 		while (iterator.hasNext()) {
 			Object groupOrProject = iterator.next();
-			if (groupsToManage == null) {
-				groupsOrProjects.put(groupOrProject);
-			} else if (groupsToManage
-					.containsKey(new JSONObject(groupOrProject.toString()).getString(ATTR_USER_MEMBERSHIPS_SRC_NAME).toLowerCase())) {
+			if (scope.contains(((JSONObject) groupOrProject).getString(ATTR_USER_MEMBERSHIPS_SRC_NAME))) {
 				groupsOrProjects.put(groupOrProject);
 			}
 		}
@@ -826,7 +985,7 @@ public class UserProcessing extends ObjectProcessing {
 	public Map<Integer, Integer> getMemberOf(String sbPath, String type) {
 		LOGGER.info("getUserAccess Start");
 		// Get groups or project to manage is informed by user on connector configuration
-		Map<String, String> groupsToManage = getGroupsForFilter(this.configuration.getGroupsToManage());
+		ManagedGroupScope scope = configuration.getManagedGroupScope();
 		Map<Integer, Integer> output = new HashMap<Integer, Integer>();
 		JSONArray groupsOrProjects = new JSONArray();
 		JSONArray partOfGroupsOrProjects = new JSONArray();
@@ -840,10 +999,7 @@ public class UserProcessing extends ObjectProcessing {
 		Iterator<Object> iterator = partOfGroupsOrProjects.iterator();
 		while (iterator.hasNext()) {
 			Object groupOrProject = iterator.next();
-			if (groupsToManage == null) {
-				groupsOrProjects.put(groupOrProject);
-			} else if (groupsToManage
-					.containsKey(new JSONObject(groupOrProject.toString()).getString("name").toLowerCase())) {
+			if (scope.contains(((JSONObject) groupOrProject).getString("name"))) {
 				groupsOrProjects.put(groupOrProject);
 			}
 		}
@@ -858,20 +1014,6 @@ public class UserProcessing extends ObjectProcessing {
 		return output;
 	}
 
-	private Map<String, String> getGroupsForFilter(String groupsToManage) {
-		LOGGER.info("getGroupsForFilter Start");
-		Map<String, String> groupArr = new HashMap<String, String>();
-		if (groupsToManage == null || groupsToManage.isEmpty()) {
-			return null;
-		}
-		String[] values = groupsToManage.toLowerCase().split(",");
-		for (String value : values) {
-			groupArr.put(value, value);
-		}
-		LOGGER.info("getGroupsForFilter End");
-		return groupArr;
-	}
-
 	private void putRequestedPassword(Boolean create, Set<Attribute> attributes, JSONObject json) {
 
 		LOGGER.info("putRequestedPassword attributes: {0}, json: {1}", attributes.toString(), json.toString());
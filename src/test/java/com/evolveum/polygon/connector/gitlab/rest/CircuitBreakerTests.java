@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.testng.annotations.Test;
+
+/**
+ * Circuit breaker of a GitLab host, needs no GitLab instance.
+ */
+public class CircuitBreakerTests {
+
+	@Test(priority = 1)
+	public void failuresBelowRateKeepBreakerClosed() {
+		CircuitBreaker breaker = breaker();
+		for (int i = 0; i < 10; i++) {
+			breaker.acquirePermission();
+			breaker.record(i % 3 == 0, 10);
+		}
+		expectState(breaker, CircuitBreaker.State.CLOSED);
+	}
+
+	@Test(priority = 2)
+	public void breakerOpensHalfOpensAndCloses() throws InterruptedException {
+		CircuitBreaker breaker = breaker();
+		tripBreaker(breaker);
+		expectRejected(breaker);
+
+		Thread.sleep(1100);
+		// the probe request
+		breaker.acquirePermission();
+		expectState(breaker, CircuitBreaker.State.HALF_OPEN);
+		expectRejected(breaker);
+
+		breaker.record(false, 10);
+		expectState(breaker, CircuitBreaker.State.CLOSED);
+		breaker.acquirePermission();
+	}
+
+	@Test(priority = 3)
+	public void failedProbeOpensBreakerAgain() throws InterruptedException {
+		CircuitBreaker breaker = breaker();
+		tripBreaker(breaker);
+
+		Thread.sleep(1100);
+		breaker.acquirePermission();
+		// slow responses count as failures
+		breaker.record(false, 5000);
+		expectState(breaker, CircuitBreaker.State.OPEN);
+		expectRejected(breaker);
+	}
+
+	@Test(priority = 4)
+	public void uriWithoutHostSharesBreakerOfLoginUrl() {
+		GitlabRestConfiguration configuration = new GitlabRestConfiguration();
+		configuration.setLoginURL("gitlab.example.com");
+		GitlabHttpTransport transport = new GitlabHttpTransport(configuration);
+		try {
+			CircuitBreaker breaker = transport.getCircuitBreaker(null);
+			if (breaker != transport.getCircuitBreaker(null)
+					|| breaker != transport.getCircuitBreaker("gitlab.example.com")) {
+				throw new InvalidAttributeValueException("Requests without host should share the breaker of loginURL");
+			}
+		} finally {
+			transport.close();
+		}
+	}
+
+	private CircuitBreaker breaker() {
+		GitlabRestConfiguration configuration = new GitlabRestConfiguration();
+		configuration.setCircuitBreakerFailureRate(50);
+		configuration.setCircuitBreakerSlowCallDuration(1000);
+		configuration.setCircuitBreakerOpenDuration(1);
+		return new CircuitBreaker("gitlab.example.com", configuration);
+	}
+
+	private void tripBreaker(CircuitBreaker breaker) {
+		for (int i = 0; i < 10; i++) {
+			breaker.acquirePermission();
+			breaker.record(true, 10);
+		}
+		expectState(breaker, CircuitBreaker.State.OPEN);
+	}
+
+	private void expectRejected(CircuitBreaker breaker) {
+		try {
+			breaker.acquirePermission();
+		} catch (ConnectorIOException e) {
+			return;
+		}
+		throw new InvalidAttributeValueException("Request should be rejected in state " + breaker.getState());
+	}
+
+	private void expectState(CircuitBreaker breaker, CircuitBreaker.State expected) {
+		if (breaker.getState() != expected) {
+			throw new InvalidAttributeValueException("Circuit breaker should be " + expected + " but is "
+					+ breaker.getState());
+		}
+	}
+}
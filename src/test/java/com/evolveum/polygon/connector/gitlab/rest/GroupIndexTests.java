@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+/**
+ * Group hierarchy index, needs no GitLab instance.
+ */
+public class GroupIndexTests {
+
+	@Test(priority = 1)
+	public void loadedSubtreeCoversMissingPaths() {
+		GroupIndex index = loadedTree(60000);
+
+		expect(Integer.valueOf(2).equals(index.getId("A/B")), "a/b should be found case-insensitively");
+		expect(Integer.valueOf(3).equals(index.getId("a/b/c")), "a/b/c should be found");
+		expect(index.isCovered("a/b/x"), "a/b/x should be covered by the loaded subtree of a");
+		expect(!index.isCovered("other/x"), "other/x should not be covered");
+	}
+
+	@Test(priority = 2)
+	public void loadedSubtreeExpires() throws InterruptedException {
+		GroupIndex index = loadedTree(50);
+		expect(index.isCovered("a/b/x"), "a/b/x should be covered before the expiration");
+
+		Thread.sleep(100);
+		expect(!index.isCovered("a/b/x"), "a/b/x should not be covered after the expiration");
+		expect(index.getId("a/b") == null, "a/b should expire");
+	}
+
+	@Test(priority = 3)
+	public void groupCreatedInLoadedSubtreeIsNotCovered() {
+		GroupIndex index = loadedTree(60000);
+		expect(index.isCovered("a/b/new"), "a/b/new should be covered before the create");
+
+		// the connector created a/b/new below a/b
+		index.childrenChanged(2);
+		expect(!index.isCovered("a/b/new"), "a/b/new should not be covered after the create");
+		expect(!index.isCovered("a/new"), "subtree of a should not be loaded after the create");
+		expect(Integer.valueOf(2).equals(index.getId("a/b")), "a/b should stay in the index");
+	}
+
+	@Test(priority = 4)
+	public void renamedOrDeletedGroupUnloadsAncestors() {
+		GroupIndex index = loadedTree(60000);
+
+		index.remove(3);
+		expect(index.getId("a/b/c") == null, "a/b/c should be removed");
+		expect(!index.isCovered("a/b/c"), "the old path should not be covered, the group may have been moved back");
+		expect(!index.isCovered("a/x"), "subtree of a should not be loaded after the remove");
+	}
+
+	private GroupIndex loadedTree(long expiration) {
+		GroupIndex index = new GroupIndex(expiration);
+		index.put(group(1, null, "a"));
+		index.clearSubtree(1);
+		index.put(group(2, 1, "a/b"));
+		index.put(group(3, 2, "a/b/c"));
+		index.setSubtreeLoaded(1);
+		return index;
+	}
+
+	private JSONObject group(int id, Integer parentId, String fullPath) {
+		JSONObject group = new JSONObject();
+		group.put("id", id);
+		group.put("parent_id", parentId == null ? JSONObject.NULL : parentId);
+		group.put("full_path", fullPath);
+		return group;
+	}
+
+	private void expect(boolean condition, String message) {
+		if (!condition) {
+			throw new InvalidAttributeValueException(message);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.testng.annotations.Test;
+
+/**
+ * Object by object parser of listing pages, needs no GitLab instance.
+ */
+public class PageParserTests {
+
+	@Test(priority = 1)
+	public void emptyPage() {
+		expectIds(parse(" [ ] "));
+		expectIds(parse(""));
+	}
+
+	@Test(priority = 2)
+	public void pageOfObjects() {
+		List<Integer> ids = parse("[{\"id\":1,\"namespace\":{\"id\":7,\"path\":\"a\"}},\n {\"id\":2,\"permissions\":{}} ,{\"id\":3}]");
+		expectIds(ids, 1, 2, 3);
+	}
+
+	@Test(priority = 3)
+	public void singleObject() {
+		expectIds(parse(" {\"id\":5}"), 5);
+	}
+
+	@Test(priority = 4)
+	public void handlerStopsPage() {
+		final List<Integer> ids = new ArrayList<Integer>();
+		boolean finished = ObjectProcessing.handlePage(new JSONTokener("[{\"id\":1},{\"id\":2},{\"id\":3}]"), object -> {
+			ids.add(object.getInt("id"));
+			return ids.size() < 2;
+		});
+		if (finished) {
+			throw new InvalidAttributeValueException("Page should be reported as stopped");
+		}
+		expectIds(ids, 1, 2);
+	}
+
+	@Test(priority = 5, expectedExceptions = JSONException.class)
+	public void malformedSeparator() {
+		parse("[{\"id\":1};{\"id\":2}]");
+	}
+
+	@Test(priority = 6, expectedExceptions = JSONException.class)
+	public void truncatedPage() {
+		parse("[{\"id\":1},{\"id\":");
+	}
+
+	private List<Integer> parse(String page) {
+		final List<Integer> ids = new ArrayList<Integer>();
+		ObjectProcessing.handlePage(new JSONTokener(page), (JSONObject object) -> {
+			ids.add(object.getInt("id"));
+			return true;
+		});
+		return ids;
+	}
+
+	private void expectIds(List<Integer> ids, Integer... expected) {
+		List<Integer> expectedIds = new ArrayList<Integer>();
+		for (Integer id : expected) {
+			expectedIds.add(id);
+		}
+		if (!ids.equals(expectedIds)) {
+			throw new InvalidAttributeValueException("Expected objects " + expectedIds + " but were " + ids);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.testng.annotations.Test;
+
+/**
+ * Pacing of requests by the rate limit headers of GitLab, needs no GitLab
+ * instance.
+ */
+public class RequestRateLimiterTests {
+
+	@Test(priority = 1)
+	public void requestsAreNotDelayedWithoutLimit() {
+		RequestRateLimiter limiter = new RequestRateLimiter(0);
+		long start = System.currentTimeMillis();
+		limiter.update(response(200));
+		expectDelay(limiter, start, 0, 200);
+	}
+
+	@Test(priority = 2)
+	public void retryAfterPausesRequests() {
+		RequestRateLimiter limiter = new RequestRateLimiter(0);
+		HttpResponse response = response(RequestRateLimiter.HTTP_TOO_MANY_REQUESTS);
+		response.addHeader("Retry-After", "1");
+		long start = System.currentTimeMillis();
+		limiter.update(response);
+		expectDelay(limiter, start, 1000, 1500);
+		// the pause is over
+		expectDelay(limiter, System.currentTimeMillis(), 0, 200);
+	}
+
+	@Test(priority = 3)
+	public void exhaustedWindowPausesRequestsUntilReset() {
+		RequestRateLimiter limiter = new RequestRateLimiter(0);
+		HttpResponse response = response(200);
+		response.addHeader("RateLimit-Remaining", "0");
+		long reset = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 2;
+		response.addHeader("RateLimit-Reset", String.valueOf(reset));
+		long start = System.currentTimeMillis();
+		limiter.update(response);
+		// between one and two seconds until the reset
+		expectDelay(limiter, start, 1000, 2500);
+	}
+
+	@Test(priority = 4)
+	public void tooManyRequestsWithoutHeadersPausesBriefly() {
+		RequestRateLimiter limiter = new RequestRateLimiter(0);
+		long start = System.currentTimeMillis();
+		limiter.update(response(RequestRateLimiter.HTTP_TOO_MANY_REQUESTS));
+		expectDelay(limiter, start, 1000, 1500);
+	}
+
+	private HttpResponse response(int statusCode) {
+		return new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+	}
+
+	/**
+	 * @param start
+	 *            time before the response was read
+	 */
+	private void expectDelay(RequestRateLimiter limiter, long start, long min, long max) {
+		limiter.acquire();
+		long delay = System.currentTimeMillis() - start;
+		if (delay < min || delay > max) {
+			throw new InvalidAttributeValueException("Request should be delayed by " + min + " - " + max
+					+ " ms, was delayed by " + delay + " ms");
+		}
+	}
+}
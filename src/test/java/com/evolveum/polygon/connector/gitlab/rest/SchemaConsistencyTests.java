@@ -234,7 +234,11 @@ public class SchemaConsistencyTests extends BasicFunctionForTests {
 			}
 		};
 		
-		gitlabRestConnector.executeQuery(objectClassAccount, filterAccount, handlerAccount, options);
+		// SSH keys are not returned by default
+		HashMap<String,Object> searchOperations = new HashMap<String,Object>();
+		searchOperations.put(OperationOptions.OP_ATTRIBUTES_TO_GET, new String[] {"SSH_keys"});
+		OperationOptions searchOptions = new OperationOptions(searchOperations);
+		gitlabRestConnector.executeQuery(objectClassAccount, filterAccount, handlerAccount, searchOptions);
 		
 		attributesAccount.remove(AttributeBuilder.build("__PASSWORD__",pass));
 		
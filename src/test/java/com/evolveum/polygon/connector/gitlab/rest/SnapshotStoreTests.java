@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.testng.annotations.Test;
+
+/**
+ * Snapshot file of the sync state, needs no GitLab instance.
+ */
+public class SnapshotStoreTests {
+
+	// more records than one write batch of the writer
+	private static final int COUNT = 10000;
+
+	@Test(priority = 1)
+	public void commitSortsAndRemovesDuplicates() throws IOException {
+		File target = tempFile();
+		File tmp = new File(target.getPath() + ".tmp");
+		tmp.deleteOnExit();
+
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int id = 1; id <= COUNT; id++) {
+			ids.add(id * 2);
+		}
+		// the same objects on two pages of the listing
+		ids.addAll(ids.subList(0, 100));
+		Collections.shuffle(ids, new Random(42));
+
+		SnapshotStore snapshot;
+		try (SnapshotStore.Writer writer = new SnapshotStore.Writer(tmp)) {
+			for (Integer id : ids) {
+				writer.append(id, id + 1);
+			}
+			snapshot = writer.commit(target);
+		}
+
+		expect(snapshot != null, "committed snapshot should open");
+		expect(snapshot.size() == COUNT, "snapshot should contain " + COUNT + " records, contains " + snapshot.size());
+		for (int i = 0; i < snapshot.size(); i++) {
+			int id = snapshot.getId(i);
+			expect(id == (i + 1) * 2, "record " + i + " should have id " + (i + 1) * 2 + ", has " + id);
+			expect(snapshot.getHash(i) == id + 1, "record of " + id + " should keep its hash");
+		}
+		expect(snapshot.indexOf(2) == 0, "first id should be found");
+		expect(snapshot.indexOf(COUNT * 2) == COUNT - 1, "last id should be found");
+		expect(snapshot.indexOf(3) == -1, "missing id should not be found");
+		expect(!tmp.exists(), "temporary file should be moved to the target");
+
+		SnapshotStore reopened = SnapshotStore.open(target);
+		expect(reopened != null && reopened.size() == COUNT, "reopened snapshot should contain " + COUNT + " records");
+	}
+
+	@Test(priority = 2)
+	public void incompleteSnapshotIsNotOpened() throws IOException {
+		File tmp = tempFile();
+
+		// crash before the commit
+		SnapshotStore.Writer writer = new SnapshotStore.Writer(tmp);
+		for (int id = 1; id <= COUNT; id++) {
+			writer.append(id, id);
+		}
+		expect(SnapshotStore.open(tmp) == null, "snapshot without a complete header should not open");
+		writer.close();
+		expect(!tmp.exists(), "closed writer should delete the incomplete snapshot");
+
+		// complete header, records cut off
+		File target = tempFile();
+		try (SnapshotStore.Writer committed = new SnapshotStore.Writer(tmp)) {
+			for (int id = 1; id <= 10; id++) {
+				committed.append(id, id);
+			}
+			committed.commit(target);
+		}
+		try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+			file.setLength(file.length() - 4);
+		}
+		expect(SnapshotStore.open(target) == null, "snapshot of wrong length should not open");
+		expect(SnapshotStore.open(new File(target.getPath() + ".missing")) == null, "missing snapshot should not open");
+	}
+
+	private File tempFile() throws IOException {
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+		return file;
+	}
+
+	private void expect(boolean condition, String message) {
+		if (!condition) {
+			throw new InvalidAttributeValueException(message);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.testng.annotations.Test;
+
+/**
+ * Received page bodies held in memory or spooled to a temporary file, needs
+ * no GitLab instance.
+ */
+public class SpooledEntityTests {
+
+	@Test(priority = 1)
+	public void smallBodyStaysInMemory() throws IOException {
+		String json = page(10);
+		ByteArrayEntity entity = new ByteArrayEntity(json.getBytes(StandardCharsets.UTF_8));
+		try (SpooledEntity body = SpooledEntity.receive(entity, 1024 * 1024)) {
+			expect(tempFiles() == 0, "small body should not be spooled");
+			expect(json.equals(EntityUtils.toString(body.decoded(), StandardCharsets.UTF_8)),
+					"body should be read unchanged");
+		}
+	}
+
+	@Test(priority = 2)
+	public void largeBodyIsSpooledCompressedAndDeletedOnClose() throws IOException {
+		String json = page(10000);
+		byte[] compressed = gzip(json);
+		ByteArrayEntity entity = new ByteArrayEntity(compressed);
+		entity.setContentEncoding("gzip");
+		int before = tempFiles();
+		SpooledEntity body = SpooledEntity.receive(entity, 1024);
+		try {
+			expect(tempFiles() == before + 1, "body above the memory limit should be spooled to a file");
+			expect(body.getContentLength() == compressed.length, "body should be spooled compressed");
+			// read twice, the page body is repeatable
+			for (int i = 0; i < 2; i++) {
+				expect(json.equals(EntityUtils.toString(body.decoded(), StandardCharsets.UTF_8)),
+						"body should be decompressed when read");
+			}
+		} finally {
+			body.close();
+		}
+		expect(tempFiles() == before, "closed body should delete its file");
+	}
+
+	private String page(int count) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int id = 1; id <= count; id++) {
+			sb.append(id > 1 ? "," : "").append("{\"id\":").append(id).append(",\"name\":\"user").append(id)
+					.append("\"}");
+		}
+		return sb.append("]").toString();
+	}
+
+	private byte[] gzip(String text) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+
+	private int tempFiles() {
+		String[] files = new File(System.getProperty("java.io.tmpdir"))
+				.list((directory, name) -> name.startsWith("gitlab-page"));
+		return files == null ? 0 : files.length;
+	}
+
+	private void expect(boolean condition, String message) {
+		if (!condition) {
+			throw new InvalidAttributeValueException(message);
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+/**
+ * System hook listener with a local stand-in for GitLab posting recorded hook
+ * payloads, needs no GitLab instance.
+ */
+public class SystemHookListenerTests {
+
+	private static final String SECRET = "hook-secret";
+
+	private static final String USER_CREATE = "{\"created_at\":\"2012-07-21T07:30:54Z\",\"updated_at\":\"2012-07-21T07:38:22Z\","
+			+ "\"email\":\"js@gitlabhq.com\",\"event_name\":\"user_create\",\"name\":\"John Smith\","
+			+ "\"username\":\"js\",\"user_id\":41}";
+	private static final String GROUP_CREATE = "{\"created_at\":\"2012-07-21T07:30:50Z\",\"updated_at\":\"2012-07-21T07:30:50Z\","
+			+ "\"event_name\":\"group_create\",\"name\":\"StoreCloud\",\"owner_email\":null,\"owner_name\":null,"
+			+ "\"path\":\"storecloud\",\"group_id\":78}";
+	private static final String USER_ADD_TO_GROUP = "{\"created_at\":\"2012-07-21T07:40:00Z\",\"updated_at\":\"2012-07-21T07:40:00Z\","
+			+ "\"event_name\":\"user_add_to_group\",\"group_access\":\"Maintainer\",\"group_id\":78,"
+			+ "\"group_name\":\"StoreCloud\",\"group_path\":\"storecloud\",\"user_email\":\"js@gitlabhq.com\","
+			+ "\"user_name\":\"John Smith\",\"user_username\":\"js\",\"user_id\":41}";
+
+	@Test(priority = 1)
+	public void journalDeduplicatesAndOrdersByEventTime() throws IOException {
+		File file = File.createTempFile("system-hooks", ".journal");
+		file.deleteOnExit();
+
+		SystemHookJournal journal = new SystemHookJournal(file);
+		SystemHookListener listener = new SystemHookListener(0, SECRET, journal);
+		try {
+			expectStatus(200, post(listener, SECRET, "uuid-1", USER_CREATE));
+			// redelivery of the same event
+			expectStatus(200, post(listener, SECRET, "uuid-1", USER_CREATE));
+			// received later, happened earlier
+			expectStatus(200, post(listener, SECRET, "uuid-2", GROUP_CREATE));
+			expectStatus(200, post(listener, SECRET, "uuid-3", USER_ADD_TO_GROUP));
+			expectStatus(401, post(listener, "wrong", "uuid-4", USER_CREATE));
+			expectStatus(400, post(listener, SECRET, "uuid-5", "not json"));
+		} finally {
+			listener.close();
+			journal.close();
+		}
+
+		// reopened journal contains the acknowledged events only
+		journal = new SystemHookJournal(file);
+		try {
+			if (journal.getLastSequence() != 3) {
+				throw new InvalidAttributeValueException("Journal should contain 3 events, contains " + journal.getLastSequence());
+			}
+			expectEvents(journal.read(0), "group_create", "user_create", "user_add_to_group");
+			expectEvents(journal.read(1), "group_create", "user_add_to_group");
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test(priority = 2)
+	public void journalDropsIncompleteLastEvent() throws IOException {
+		File file = File.createTempFile("system-hooks", ".journal");
+		file.deleteOnExit();
+
+		SystemHookJournal journal = new SystemHookJournal(file);
+		try {
+			journal.append("uuid-1", new JSONObject(USER_CREATE));
+		} finally {
+			journal.close();
+		}
+		// write interrupted by a crash
+		Files.write(file.toPath(), "{\"seq\":2,\"uuid\":\"uuid-2\",\"ti".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+
+		journal = new SystemHookJournal(file);
+		try {
+			journal.append("uuid-2", new JSONObject(GROUP_CREATE));
+			expectEvents(journal.read(0), "group_create", "user_create");
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test(priority = 3, expectedExceptions = ConfigurationException.class)
+	public void listenerWithoutSecretIsRejected() throws IOException {
+		File file = File.createTempFile("system-hooks", ".journal");
+		file.deleteOnExit();
+
+		GitlabRestConfiguration configuration = new GitlabRestConfiguration();
+		configuration.setLoginURL("localhost");
+		configuration.setProtocol("https");
+		configuration.setSystemHookPort(8095);
+		configuration.setSystemHookJournalFile(file.getPath());
+		configuration.validate();
+	}
+
+	@Test(priority = 4)
+	public void listenerWithSecretIsValid() throws IOException {
+		File file = File.createTempFile("system-hooks", ".journal");
+		file.deleteOnExit();
+
+		GitlabRestConfiguration configuration = new GitlabRestConfiguration();
+		configuration.setLoginURL("localhost");
+		configuration.setProtocol("https");
+		configuration.setSystemHookPort(8095);
+		configuration.setSystemHookJournalFile(file.getPath());
+		configuration.setSystemHookSecret(new GuardedString(SECRET.toCharArray()));
+		configuration.validate();
+	}
+
+	@Test(priority = 5)
+	public void journalRemovesEventsAcknowledgedByAllObjectClasses() throws IOException {
+		File file = File.createTempFile("system-hooks", ".journal");
+		file.deleteOnExit();
+		new File(file.getPath() + ".ack").deleteOnExit();
+
+		SystemHookJournal journal = new SystemHookJournal(file, 1);
+		try {
+			journal.append("uuid-1", new JSONObject(USER_CREATE));
+			journal.append("uuid-2", new JSONObject(GROUP_CREATE));
+			journal.append("uuid-3", new JSONObject(USER_ADD_TO_GROUP));
+			journal.append("uuid-4", new JSONObject(GROUP_CREATE));
+			long size = file.length();
+
+			journal.acknowledge("__GROUP__", 1);
+			journal.acknowledge("__ACCOUNT__", 3);
+			if (file.length() != size) {
+				throw new InvalidAttributeValueException("Events not acknowledged by groups should stay in the journal");
+			}
+			journal.acknowledge("__GROUP__", 4);
+			if (file.length() >= size) {
+				throw new InvalidAttributeValueException("Events acknowledged by all object classes should be removed");
+			}
+			expectEvents(journal.read(0), "group_create");
+		} finally {
+			journal.close();
+		}
+
+		journal = new SystemHookJournal(file, 1);
+		try {
+			expectLastSequence(journal, 4);
+			expectEvents(journal.read(0), "group_create");
+			journal.append("uuid-5", new JSONObject(USER_CREATE));
+			expectLastSequence(journal, 5);
+			journal.acknowledge("__ACCOUNT__", 5);
+			journal.acknowledge("__GROUP__", 5);
+			expectEvents(journal.read(0));
+		} finally {
+			journal.close();
+		}
+
+		// sequence numbers go on in an empty journal
+		journal = new SystemHookJournal(file, 1);
+		try {
+			expectLastSequence(journal, 5);
+			journal.append("uuid-6", new JSONObject(GROUP_CREATE));
+			expectLastSequence(journal, 6);
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test(priority = 6)
+	public void journalReadsLimitedNumberOfEvents() throws IOException {
+		File file = File.createTempFile("system-hooks", ".journal");
+		file.deleteOnExit();
+
+		SystemHookJournal journal = new SystemHookJournal(file);
+		try {
+			journal.append("uuid-1", new JSONObject(USER_CREATE));
+			journal.append("uuid-2", new JSONObject(GROUP_CREATE));
+			journal.append("uuid-3", new JSONObject(USER_ADD_TO_GROUP));
+			expectEvents(journal.read(0, 2), "group_create", "user_create");
+			expectEvents(journal.read(2, 2), "user_add_to_group");
+			expectEvents(journal.read(3, 2));
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test(priority = 7)
+	public void latestTokenKeepsEventsForFirstSync() throws IOException {
+		File file = File.createTempFile("system-hooks", ".journal");
+		file.deleteOnExit();
+		new File(file.getPath() + ".ack").deleteOnExit();
+
+		SystemHookJournal journal = new SystemHookJournal(file, 1);
+		try {
+			journal.append("uuid-1", new JSONObject(GROUP_CREATE));
+			// accounts start from the latest token, groups sync meanwhile
+			long accountToken = journal.getLatestSequence("__ACCOUNT__");
+			journal.append("uuid-2", new JSONObject(USER_CREATE));
+			journal.append("uuid-3", new JSONObject(USER_ADD_TO_GROUP));
+			journal.acknowledge("__GROUP__", journal.getLastSequence());
+
+			expectEvents(journal.read(accountToken), "user_create", "user_add_to_group");
+			// a second latest token does not move the acknowledgement
+			journal.getLatestSequence("__ACCOUNT__");
+			expectEvents(journal.read(accountToken), "user_create", "user_add_to_group");
+
+			journal.acknowledge("__ACCOUNT__", journal.getLastSequence());
+			expectEvents(journal.read(0));
+		} finally {
+			journal.close();
+		}
+	}
+
+	private int post(SystemHookListener listener, String token, String uuid, String payload) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + listener.getPort() + "/")
+				.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setRequestProperty("X-Gitlab-Event", "System Hook");
+		connection.setRequestProperty("X-Gitlab-Token", token);
+		connection.setRequestProperty("X-Gitlab-Event-UUID", uuid);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(payload.getBytes(StandardCharsets.UTF_8));
+		}
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+
+	private void expectStatus(int expected, int status) {
+		if (status != expected) {
+			throw new InvalidAttributeValueException("Expected status " + expected + " but was " + status);
+		}
+	}
+
+	private void expectLastSequence(SystemHookJournal journal, long expected) {
+		if (journal.getLastSequence() != expected) {
+			throw new InvalidAttributeValueException("Last sequence should be " + expected + " but was "
+					+ journal.getLastSequence());
+		}
+	}
+
+	private void expectEvents(List<SystemHookJournal.Entry> entries, String... eventNames) {
+		StringBuilder actual = new StringBuilder();
+		for (SystemHookJournal.Entry entry : entries) {
+			actual.append(entry.getEventName()).append(" ");
+		}
+		StringBuilder expected = new StringBuilder();
+		for (String eventName : eventNames) {
+			expected.append(eventName).append(" ");
+		}
+		if (!expected.toString().equals(actual.toString())) {
+			throw new InvalidAttributeValueException("Expected events " + expected + "but were " + actual);
+		}
+	}
+}
@@ -130,7 +130,11 @@ public class UpdateTests extends BasicFunctionForTests {
 			}
 		};
 		
-		gitlabRestConnector.executeQuery(objectClassAccount, filterAccount, handlerAccount, options);
+		// SSH keys are not returned by default
+		HashMap<String,Object> searchOperations = new HashMap<String,Object>();
+		searchOperations.put(OperationOptions.OP_ATTRIBUTES_TO_GET, new String[] {"SSH_keys"});
+		OperationOptions searchOptions = new OperationOptions(searchOperations);
+		gitlabRestConnector.executeQuery(objectClassAccount, filterAccount, handlerAccount, searchOptions);
 		
 		Set<Attribute> attributesAccount = new HashSet<Attribute>();
 		for(AttributeDelta attr : attributesUpdateAccount){
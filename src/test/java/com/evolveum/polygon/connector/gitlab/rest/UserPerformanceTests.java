@@ -178,7 +178,10 @@ public class UserPerformanceTests extends BasicFunctionForTests {
 		
 		ObjectClass objectClassGroup = ObjectClass.GROUP;
 		
-		OperationOptions options = new OperationOptions(new HashMap<String,Object>());
+		// members are not returned by default
+		Map<String, Object> operationOptions = new HashMap<String, Object>();
+		operationOptions.put(OperationOptions.OP_ATTRIBUTES_TO_GET, new String[] {"developer_members"});
+		OperationOptions options = new OperationOptions(operationOptions);
 		
 		AttributeFilter equalsFilter;
 		equalsFilter = (EqualsFilter) FilterBuilder.equalTo(targaryenUid);
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2010-2017 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.gitlab.rest;
+
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.json.JSONObject;
+import org.testng.annotations.Test;
+
+/**
+ * Position of the user live synchronization, needs no GitLab instance.
+ */
+public class UserSyncPositionTests {
+
+	private static final String UPDATED_AT = "2026-01-01T10:00:00.000Z";
+
+	@Test(priority = 1)
+	public void olderUsersAndUserOfPositionAreBehind() {
+		long[] position = UserProcessing.toPosition(new SyncToken(UPDATED_AT + "#5"));
+		expect(position != null, "token should be a position");
+		expect(UserProcessing.isBehind(user(7, "2026-01-01T09:59:59.999Z"), position), "older user should be behind");
+		expect(UserProcessing.isBehind(user(5, UPDATED_AT), position), "user of the position should be behind");
+		expect(!UserProcessing.isBehind(user(3, "2026-01-01T10:00:00.001Z"), position),
+				"newer user should not be behind");
+	}
+
+	@Test(priority = 2)
+	public void usersOfEqualUpdatedAtAreNotBehind() {
+		long[] position = UserProcessing.toPosition(new SyncToken(UPDATED_AT + "#5"));
+		// GitLab does not order users of the same updated_at by id
+		expect(!UserProcessing.isBehind(user(2, UPDATED_AT), position),
+				"user of the same updated_at with a lower id should not be behind");
+		expect(!UserProcessing.isBehind(user(9, "2026-01-01T11:00:00+01:00"), position),
+				"user of the same updated_at in another offset should not be behind");
+	}
+
+	@Test(priority = 3)
+	public void tokenWhichIsNotPositionReadsAllUsers() {
+		expect(UserProcessing.toPosition(new SyncToken("eyJpZCI6IjIifQ")) == null,
+				"keyset cursor should not be a position");
+		expect(UserProcessing.toPosition(new SyncToken(ObjectProcessing.SYNC_FROM_START)) == null,
+				"start token should not be a position");
+	}
+
+	private JSONObject user(int id, String updatedAt) {
+		return new JSONObject().put("id", id).put("updated_at", updatedAt);
+	}
+
+	private void expect(boolean condition, String message) {
+		if (!condition) {
+			throw new InvalidAttributeValueException(message);
+		}
+	}
+}